@@ -0,0 +1,132 @@
+package bench;
+
+import handlebar.PathFinder.NoPathFoundException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Point;
+import comm.ClearanceGrid;
+
+/*
+ * PathFinder.findPath() as it was before it moved to integer cells and an
+ * indexed heap, kept so PlanningBenchmark can compare the two. Points are
+ * identified by their formatted coordinates, the open set is a plain
+ * PriorityQueue, and paths are reconstructed recursively.
+ */
+public class LegacyPathFinder {
+	private final static double CLEARANCE = 0.25; // Grid units between a waypoint and the nearest wall.
+
+	public static List<Point> findPath(BotClientMap m, Point origin, Point destination) throws NoPathFoundException {
+		PathFinderPoint start = new PathFinderPoint(new Point(origin.x, origin.y), distance(origin, destination));
+		PathFinderPoint goal = new PathFinderPoint(destination, 0);
+		Set<PathFinderPoint> closedset = new HashSet<PathFinderPoint>();
+		Queue<PathFinderPoint> openset = new PriorityQueue<PathFinderPoint>();
+		openset.add(start);
+		Map<PathFinderPoint, PathFinderPoint> came_from = new HashMap<PathFinderPoint, PathFinderPoint>();
+
+		Map<PathFinderPoint, Double> g_score = new HashMap<PathFinderPoint, Double>();
+		g_score.put(start, 0.0);
+		ClearanceGrid clearance = m.getClearance();
+		while (!openset.isEmpty()) {
+			PathFinderPoint point = openset.poll();
+			if (distance(point.p, goal.p) < 0.25 * Math.sqrt(2)) {
+				return reconstructPath(came_from, goal);
+			}
+			closedset.add(point);
+			for (Point neighbor : point.neighbors()) {
+				if (closedset.contains(new PathFinderPoint(neighbor, 0))) {
+					continue;
+				}
+				if (!clearance.isClear(neighbor.x, neighbor.y, CLEARANCE)) {
+					continue;
+				}
+				double tentative_g_score = g_score.get(point) + distance(point.p, neighbor);
+				if (!openset.contains(new PathFinderPoint(neighbor, 0)) || tentative_g_score < g_score.get(new PathFinderPoint(neighbor, 0))) {
+					double calculated_f_score = tentative_g_score + distance(neighbor, destination);
+					PathFinderPoint neighborPoint = new PathFinderPoint(neighbor, calculated_f_score);
+					came_from.put(neighborPoint, point);
+					g_score.put(neighborPoint, tentative_g_score);
+					if (!openset.contains(neighbor)) {
+						openset.add(neighborPoint);
+					}
+				}
+			}
+		}
+		throw new NoPathFoundException();
+	}
+
+	public static List<Point> reconstructPath(Map<PathFinderPoint, PathFinderPoint> came_from, PathFinderPoint current_node) {
+		List<Point> list;
+		if (came_from.containsKey(current_node)) {
+			list = reconstructPath(came_from, came_from.get(current_node));
+		}
+		else {
+			list = new ArrayList<Point>();
+		}
+		list.add(current_node.p);
+		return list;
+	}
+
+	public static class PathFinderPoint implements Comparable<PathFinderPoint> {
+		private Point p;
+		private double cost;
+		public PathFinderPoint(Point p, double cost) {
+			this.p = p;
+			this.cost = cost;
+		}
+
+		@Override
+		public int compareTo(PathFinderPoint other) {
+			// TODO Auto-generated method stub
+			if (this.cost > other.cost) {
+				return 1;
+			}
+			else if (this.cost < other.cost) {
+				return -1;
+			}
+			else {
+				return 0;
+			}
+		}
+
+		public List<Point> neighbors() {
+			List<Point> list = new ArrayList<Point>();
+			for (int x = -1; x <= 1; x++) {
+				for (int y = -1; y <= 1; y++) {
+					if (x == 0 && y == 0) {
+						continue;
+					}
+					list.add(new Point(p.x + 0.5 * x, p.y + 0.5 * y));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return this.toString().equals(obj.toString());
+		}
+
+		@Override
+		public int hashCode() {
+			return p.toString().hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return p.toString();
+		}
+	}
+
+	private static double distance(Point a, Point b) {
+		return Math.sqrt((a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y));
+	}
+}
@@ -0,0 +1,174 @@
+package bench;
+
+import handlebar.ProbabilisticPose;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Pose;
+
+/*
+ * ProbabilisticPose.perturb(), resample() and representativePose() on the
+ * default map, at the particle count Navigator uses and at the one the
+ * ProbabilisticPose test harness uses, then resample() with each resampling
+ * strategy up to 100k particles, with the range table turned off, and in
+ * parallel on the common fork/join pool.
+ *
+ * Every measurement iteration starts from a freshly spread out filter, so
+ * that particles perturbed over and over by one iteration do not change
+ * what the next one measures.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalizationBenchmark {
+	private static final double[] READINGS = {0.6, 1.2, 0.4};
+
+	/*
+	 * The map, loaded once per trial, and a filter on it.
+	 */
+	public abstract static class OnMap {
+		BotClientMap map;
+		ProbabilisticPose pose;
+
+		@Setup(Level.Trial)
+		public void loadMap() {
+			map = BotClientMap.getDefaultMap();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Filter extends OnMap {
+		@Param({"1000", "20000"})
+		public int particles;
+
+		@Setup(Level.Iteration)
+		public void spreadOut() {
+			pose = LocalizationBenchmark.spreadOut(map, particles);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Resampling extends OnMap {
+		@Param({"1000", "20000", "100000"})
+		public int particles;
+
+		@Param
+		public ProbabilisticPose.Resampling strategy;
+
+		@Setup(Level.Iteration)
+		public void spreadOut() {
+			pose = LocalizationBenchmark.spreadOut(map, particles);
+			pose.setResampling(strategy);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class RayCast extends OnMap {
+		@Param({"1000", "20000", "100000"})
+		public int particles;
+
+		@Setup(Level.Iteration)
+		public void spreadOut() {
+			pose = LocalizationBenchmark.spreadOut(map, particles);
+			pose.setRangeTableEnabled(false);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Parallel extends OnMap {
+		@Param({"20000", "100000"})
+		public int particles;
+
+		@Setup(Level.Iteration)
+		public void spreadOut() {
+			pose = LocalizationBenchmark.spreadOut(map, particles);
+			pose.setParallel(ForkJoinPool.commonPool());
+		}
+	}
+
+	@Benchmark
+	public void perturb(Filter f) {
+		f.pose.perturb(0.01, 0.001);
+	}
+
+	@Benchmark
+	public void resample(Filter f) {
+		f.pose.resample(f.map, READINGS);
+	}
+
+	/*
+	 * Weighing only; resamples when the effective sample size runs low.
+	 */
+	@Benchmark
+	public boolean update(Filter f) {
+		return f.pose.update(f.map, READINGS);
+	}
+
+	/*
+	 * As in the control loop: the particles move, then the estimate is read.
+	 */
+	@Benchmark
+	public Pose perturbAndEstimate(Filter f) {
+		f.pose.perturb(0.0, 0.0);
+		return f.pose.representativePose();
+	}
+
+	/*
+	 * After a resample the clusters are found again.
+	 */
+	@Benchmark
+	public Pose resampleAndEstimate(Filter f) {
+		f.pose.resample(f.map, READINGS);
+		return f.pose.representativePose();
+	}
+
+	@Benchmark
+	public void resampleByStrategy(Resampling f) {
+		f.pose.resample(f.map, READINGS);
+	}
+
+	@Benchmark
+	public void resampleRayCast(RayCast f) {
+		f.pose.resample(f.map, READINGS);
+	}
+
+	@Benchmark
+	public void resampleParallel(Parallel f) {
+		f.pose.resample(f.map, READINGS);
+	}
+
+	@Benchmark
+	public void perturbParallel(Parallel f) {
+		f.pose.perturb(0.01, 0.001);
+	}
+
+	/*
+	 * A filter whose particles have all been sampled and have drifted apart,
+	 * as they do between resamples.
+	 */
+	static ProbabilisticPose spreadOut(BotClientMap map, int n) {
+		ProbabilisticPose p = new ProbabilisticPose(new Pose(map.startPose.x, map.startPose.y, map.startPose.theta), n);
+		p.resample(map, READINGS);
+		for (int i = 0; i < 20; i++) {
+			p.perturb(0.05, 0.05);
+		}
+		return p;
+	}
+}
@@ -0,0 +1,93 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import comm.BotClientMap;
+import comm.ClearanceGrid;
+
+/*
+ * BotClientMap.load() and toBotClientString() for the default map and
+ * generated maps with many walls, the same through the binary form, and
+ * load() with the clearance grid it builds. The parsing benchmarks leave
+ * the grid to getClearance(), so they time the parsing alone. Every load
+ * is into a new map, as loading adds to the walls already there.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+
+	@State(Scope.Thread)
+	public static class Map {
+		// "default" for the default map, or the size of a serpentine map.
+		@Param({"default", "16", "64"})
+		public String map;
+
+		String mapString;
+		BotClientMap m;
+		byte[] binary;
+
+		@Setup(Level.Trial)
+		public void load() {
+			if (map.equals("default")) {
+				mapString = BotClientMap.getDefaultMap().toBotClientString();
+			}
+			else {
+				mapString = Maps.serpentine(Integer.parseInt(map));
+			}
+			m = Maps.load(mapString);
+			binary = m.toBinary();
+		}
+	}
+
+	@Benchmark
+	public BotClientMap load(Map s) {
+		BotClientMap m = new BotClientMap();
+		m.setLazyClearance(true);
+		m.load(s.mapString);
+		return m;
+	}
+
+	@Benchmark
+	public String toBotClientString(Map s) {
+		return s.m.toBotClientString();
+	}
+
+	@Benchmark
+	public String toString(Map s) {
+		return s.m.toString();
+	}
+
+	@Benchmark
+	public BotClientMap loadBinary(Map s) {
+		BotClientMap m = new BotClientMap();
+		m.setLazyClearance(true);
+		m.loadBinary(s.binary);
+		return m;
+	}
+
+	@Benchmark
+	public byte[] toBinary(Map s) {
+		return s.m.toBinary();
+	}
+
+	@Benchmark
+	public ClearanceGrid loadWithClearance(Map s) {
+		return Maps.load(s.mapString).getClearance();
+	}
+}
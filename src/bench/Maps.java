@@ -0,0 +1,58 @@
+package bench;
+
+import comm.BotClientMap;
+
+/*
+ * Generated maps of configurable size for the benchmarks.
+ */
+public class Maps {
+
+	/*
+	 * An n by n square field split by walls into a serpentine corridor two
+	 * squares wide, in BotClient format. The start pose is in the bottom left
+	 * corner; farCorner() is at the end of the corridor, so paths between them
+	 * cover the whole map. The right-hand wall, beside the end of the
+	 * corridor, is a silo.
+	 */
+	public static String serpentine(int n) {
+		StringBuilder s = new StringBuilder();
+		s.append("22.00:0.50,0.50,0.00:");
+		wall(s, 0, 0, n, 0);
+		wall(s, n, 0, n, n, 'S');
+		wall(s, n, n, 0, n);
+		wall(s, 0, n, 0, 0);
+		boolean fromBottom = true;
+		for (int x = 2; x < n; x += 2) {
+			if (fromBottom) {
+				wall(s, x, 0, x, n - 1);
+			}
+			else {
+				wall(s, x, 1, x, n);
+			}
+			fromBottom = !fromBottom;
+		}
+		return s.toString();
+	}
+
+	public static BotClientMap load(String mapString) {
+		BotClientMap m = new BotClientMap();
+		m.load(mapString);
+		return m;
+	}
+
+	public static BotClientMap.Point farCorner(int n) {
+		// The corridor ends at the top if there is an even number of walls
+		int walls = (n - 1) / 2;
+		double x = n - 0.5;
+		double y = (walls % 2 == 0) ? n - 0.5 : 0.5;
+		return new BotClientMap.Point(x, y);
+	}
+
+	private static void wall(StringBuilder s, int x1, int y1, int x2, int y2) {
+		wall(s, x1, y1, x2, y2, 'N');
+	}
+
+	private static void wall(StringBuilder s, int x1, int y1, int x2, int y2, char type) {
+		s.append(x1).append(".00,").append(y1).append(".00,").append(x2).append(".00,").append(y2).append(".00,").append(type).append(':');
+	}
+}
@@ -0,0 +1,219 @@
+package bench;
+
+import handlebar.PathFinder;
+import handlebar.PathFinder.NoPathFoundException;
+import handlebar.Replanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Point;
+import comm.BotClientMap.Wall;
+import comm.BotClientMap.Wall.WallType;
+
+/*
+ * PathFinder.findPath() across serpentine maps of increasing size (see
+ * Maps), from the start pose to the far end of the corridor, next to the
+ * same searches with LegacyPathFinder. The cached runs repeat one plan;
+ * the unreachable runs ask for a point just outside the walls. Random
+ * pairs are run with and without the landmark heuristic. Replanner
+ * runs keep their search state from plan to plan, as Navigator's do, and
+ * start over with a new Replanner every iteration.
+ * The nearest-wall runs follow the map's approach field from the start
+ * pose to its one reactor or silo; on the serpentine maps that is the
+ * length of the corridor, the same way as the other searches.
+ *
+ * The plan cache and landmarks are switched with PathFinder's static
+ * setters, so each benchmark runs in its own fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanningBenchmark {
+	private static final Point OUTSIDE = new Point(-0.5, -0.5); // Just outside the walls of every map here.
+	private static final int PAIRS = 64;
+	private static final int ROUTE_POINTS = 16;
+	private static final double SPACING = 0.5;
+
+	@State(Scope.Thread)
+	public static class Planning {
+		// "default" for the default map, or the size of a serpentine map.
+		@Param({"default", "4", "8", "16"})
+		public String map;
+
+		BotClientMap m;
+		Point goal;
+		WallType target;
+		// Fixed pairs of reachable lattice points drawn at random, one pair per call.
+		final List<Point[]> pairs = new ArrayList<Point[]>();
+		int nextPair = 0;
+		// Successive points along the route to the goal, one per call.
+		final List<Point> route = new ArrayList<Point>();
+		int nextRoutePoint = 0;
+		Replanner planner;
+
+		@Setup(Level.Trial)
+		public void load() throws NoPathFoundException {
+			if (map.equals("default")) {
+				m = BotClientMap.getDefaultMap();
+				goal = new Point(0.5, 3.0);
+				target = WallType.REACTOR;
+			}
+			else {
+				int n = Integer.parseInt(map);
+				m = Maps.load(Maps.serpentine(n));
+				goal = Maps.farCorner(n);
+				target = WallType.SILO;
+			}
+			drawPairs();
+			List<Point> path = PathFinder.findPath(m, m.startPose, goal);
+			for (int i = 1; i < path.size() && route.size() < ROUTE_POINTS; i++) {
+				Point a = path.get(i - 1);
+				Point b = path.get(i);
+				double length = Math.sqrt((b.x - a.x) * (b.x - a.x) + (b.y - a.y) * (b.y - a.y));
+				for (double t = 0; t < length && route.size() < ROUTE_POINTS; t += SPACING) {
+					route.add(new Point(a.x + (b.x - a.x) * t / length, a.y + (b.y - a.y) * t / length));
+				}
+			}
+		}
+
+		@Setup(Level.Iteration)
+		public void startOver() {
+			nextPair = 0;
+			nextRoutePoint = 0;
+			planner = new Replanner(m, goal);
+		}
+
+		private void drawPairs() {
+			Random random = new Random(0);
+			double minx = Double.POSITIVE_INFINITY;
+			double maxx = Double.NEGATIVE_INFINITY;
+			double miny = Double.POSITIVE_INFINITY;
+			double maxy = Double.NEGATIVE_INFINITY;
+			for (Wall w : m.getWalls()) {
+				minx = Math.min(minx, Math.min(w.start.x, w.end.x));
+				maxx = Math.max(maxx, Math.max(w.start.x, w.end.x));
+				miny = Math.min(miny, Math.min(w.start.y, w.end.y));
+				maxy = Math.max(maxy, Math.max(w.start.y, w.end.y));
+			}
+			int columns = (int) ((maxx - minx) * 2) + 1;
+			int rows = (int) ((maxy - miny) * 2) + 1;
+			while (pairs.size() < PAIRS) {
+				Point a = new Point(minx + 0.5 * random.nextInt(columns), miny + 0.5 * random.nextInt(rows));
+				Point b = new Point(minx + 0.5 * random.nextInt(columns), miny + 0.5 * random.nextInt(rows));
+				if (PathFinder.isReachable(m, a, b)) {
+					pairs.add(new Point[] {a, b});
+				}
+			}
+		}
+
+		Point[] nextPair() {
+			Point[] pair = pairs.get(nextPair);
+			nextPair = (nextPair + 1) % pairs.size();
+			return pair;
+		}
+
+		Point nextRoutePoint() {
+			Point p = route.get(nextRoutePoint);
+			nextRoutePoint = (nextRoutePoint + 1) % route.size();
+			return p;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class NoPlanCache {
+		@Setup(Level.Trial)
+		public void disable() {
+			PathFinder.setPlanCacheEnabled(false);
+		}
+
+		@TearDown(Level.Trial)
+		public void enable() {
+			PathFinder.setPlanCacheEnabled(true);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class NoLandmarks {
+		@Setup(Level.Trial)
+		public void disable() {
+			PathFinder.setLandmarksEnabled(false);
+		}
+
+		@TearDown(Level.Trial)
+		public void enable() {
+			PathFinder.setLandmarksEnabled(true);
+		}
+	}
+
+	@Benchmark
+	public List<Point> findPath(Planning p, NoPlanCache c) throws NoPathFoundException {
+		return PathFinder.findPath(p.m, p.m.startPose, p.goal);
+	}
+
+	@Benchmark
+	public List<Point> findPathRandomPairs(Planning p, NoPlanCache c) throws NoPathFoundException {
+		Point[] pair = p.nextPair();
+		return PathFinder.findPath(p.m, pair[0], pair[1]);
+	}
+
+	@Benchmark
+	public List<Point> findPathRandomPairsNoLandmarks(Planning p, NoPlanCache c, NoLandmarks l) throws NoPathFoundException {
+		Point[] pair = p.nextPair();
+		return PathFinder.findPath(p.m, pair[0], pair[1]);
+	}
+
+	@Benchmark
+	public List<Point> findPathCached(Planning p) throws NoPathFoundException {
+		return PathFinder.findPath(p.m, p.m.startPose, p.goal);
+	}
+
+	@Benchmark
+	public NoPathFoundException findPathUnreachable(Planning p) {
+		try {
+			PathFinder.findPath(p.m, p.m.startPose, OUTSIDE);
+		} catch (NoPathFoundException e) {
+			return e;
+		}
+		throw new IllegalStateException("Found a path out of the map");
+	}
+
+	@Benchmark
+	public List<Point> findPathToNearest(Planning p) throws NoPathFoundException {
+		return PathFinder.findPathToNearest(p.m, p.m.startPose, p.target);
+	}
+
+	/*
+	 * One Replanner asked for plans from successive points along the route,
+	 * as Navigator does after each leg, going back to the start every
+	 * ROUTE_POINTS plans.
+	 */
+	@Benchmark
+	public List<Point> replan(Planning p) throws NoPathFoundException {
+		return p.planner.plan(p.nextRoutePoint());
+	}
+
+	@Benchmark
+	public List<Point> legacyFindPath(Planning p) throws NoPathFoundException {
+		return LegacyPathFinder.findPath(p.m, p.m.startPose, p.goal);
+	}
+}
@@ -0,0 +1,147 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import jssc.SerialPort;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import comm.FrameDecoder;
+import comm.MapleComm;
+import comm.MapleEmulator;
+import comm.MapleIO;
+import comm.SensorSnapshot;
+import devices.actuators.Cytron;
+import devices.actuators.Servo1800A;
+import devices.sensors.Encoder;
+import devices.sensors.Gyroscope;
+import devices.sensors.Infrared;
+
+/*
+ * MapleComm frame encoding and decoding, with Robot's set of devices.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+	/*
+	 * Encoding only: the port throws the bytes away.
+	 */
+	@State(Scope.Thread)
+	public static class Encoding {
+		final Cytron left = new Cytron(2, 1);
+		final Cytron right = new Cytron(7, 6);
+		MapleComm comm;
+		double speed;
+
+		@Setup(Level.Iteration)
+		public void connect() {
+			comm = new MapleComm(new NullPort());
+			registerRobotDevices(comm, left, right);
+			comm.initialize();
+			speed = 0;
+		}
+	}
+
+	/*
+	 * Decoding only: one Robot-sized frame at a time.
+	 */
+	@State(Scope.Thread)
+	public static class Decoding {
+		final int dataSize = 5 * 2;
+		final byte[] frame = new byte[dataSize + 2];
+		final byte[] data = new byte[dataSize];
+		FrameDecoder decoder;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			frame[0] = MapleIO.RESPONSE_SIGNAL;
+			frame[frame.length - 1] = MapleIO.END_SIGNAL;
+			decoder = new FrameDecoder(dataSize);
+		}
+	}
+
+	/*
+	 * Request, response and processing through an emulated Maple, without
+	 * modelling the serial link's speed.
+	 */
+	@State(Scope.Thread)
+	public static class Emulated {
+		MapleComm comm;
+
+		@Setup(Level.Iteration)
+		public void connect() {
+			MapleEmulator emulator = new MapleEmulator();
+			emulator.setRealTime(false);
+			comm = new MapleComm(emulator);
+			registerRobotDevices(comm, new Cytron(2, 1), new Cytron(7, 6));
+			comm.initialize();
+		}
+	}
+
+	@Benchmark
+	public void transmit(Encoding s) {
+		// Change the speeds so there is always something to send
+		s.speed = (s.speed > 0.5) ? 0 : s.speed + 0.01;
+		s.left.setSpeed(s.speed);
+		s.right.setSpeed(-s.speed);
+		s.comm.transmit();
+	}
+
+	@Benchmark
+	public FrameDecoder.Result decode(Decoding s) {
+		s.decoder.feed(s.frame, 0, s.frame.length);
+		return s.decoder.decode(s.data);
+	}
+
+	@Benchmark
+	public SensorSnapshot updateSensorData(Emulated s) {
+		s.comm.updateSensorData();
+		return s.comm.getLatestSnapshot();
+	}
+
+	private static void registerRobotDevices(MapleComm comm, Cytron left, Cytron right) {
+		comm.registerDevice(left);
+		comm.registerDevice(right);
+		comm.registerDevice(new Servo1800A(3));
+		comm.registerDevice(new Gyroscope(1, 9));
+		comm.registerDevice(new Encoder(33, 34));
+		comm.registerDevice(new Infrared(17));
+		comm.registerDevice(new Infrared(16));
+		comm.registerDevice(new Infrared(15));
+	}
+
+	private static class NullPort extends SerialPort {
+		NullPort() {
+			super("null");
+		}
+
+		@Override
+		public boolean openPort() {
+			return true;
+		}
+
+		@Override
+		public boolean setParams(int baudRate, int dataBits, int stopBits, int parity) {
+			return true;
+		}
+
+		@Override
+		public boolean writeBytes(byte[] buffer) {
+			return true;
+		}
+	}
+}
@@ -4,7 +4,12 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 import javax.swing.JComponent;
 import javax.swing.JFrame;
@@ -12,41 +17,346 @@ import javax.swing.JFrame;
 import comm.BotClientMap.Point;
 
 public class BotClientMap {
+	// Header of the binary form: "BCMB", then BINARY_VERSION and the number of walls.
+	private final static int BINARY_MAGIC = 0x42434D42;
+	private final static byte BINARY_VERSION = 1;
+	private final static int BINARY_HEADER_BYTES = 4 + 1 + 4;
+	private final static int BINARY_POSE_BYTES = 4 * 4; // Grid size and start pose.
+	private final static int BINARY_WALL_BYTES = 4 * 4 + 1;
+	private final static double BINARY_SCALE = 100; // Numbers are kept in hundredths.
+	
 	public double gridSize;
 	public Pose startPose;
-	public ArrayList<Wall> walls;
+	// Never changed in place: load(), addWall() and removeWall() replace it
+	// with a new read-only list, so a reader on any thread that takes it once
+	// sees one consistent set of walls. See getWalls().
+	private volatile List<Wall> walls = Collections.emptyList();
+	private double clearanceCellSize = ClearanceGrid.DEFAULT_CELL_SIZE;
+	private ClearanceGrid clearance;
+	private boolean lazyClearance = false;
+	private int version = 0;
 	
 	public BotClientMap() {
-		walls = new ArrayList<>();
 	}
 	
-	public void load(String s) {
-		String[] parts = s.split(":");
-		int i = 0;
-		this.gridSize = parseGridSize(parts[i++]);
-		this.startPose = parsePose(parts[i++]);
-		for (; i < parts.length; i++) {
-			walls.add(parseWall(parts[i]));
+	/*
+	 * Reads a map in BotClient format (grid size, start pose, then walls,
+	 * separated by colons) in one pass over the characters, adding its walls
+	 * to any already loaded. Throws IllegalArgumentException, with the
+	 * position, if the map is malformed.
+	 */
+	public void load(CharSequence s) {
+		Parser parser = new Parser(s);
+		double gridSize = parser.number();
+		parser.expect(':');
+		Pose startPose = new Pose(parser.number(), parser.comma().number(), parser.comma().number());
+		ArrayList<Wall> loaded = new ArrayList<>();
+		while (parser.next(':')) {
+			double x1 = parser.number();
+			double y1 = parser.comma().number();
+			double x2 = parser.comma().number();
+			double y2 = parser.comma().number();
+			loaded.add(new Wall(new Point(x1, y1), new Point(x2, y2), parser.comma().wallType()));
+		}
+		load(gridSize, startPose, loaded);
+	}
+	
+	/*
+	 * Reads a map in the form toBinary() writes, adding its walls to any
+	 * already loaded. Throws IllegalArgumentException if the data is not
+	 * such a map.
+	 */
+	public void loadBinary(byte[] data) {
+		ByteBuffer in = ByteBuffer.wrap(data);
+		try {
+			if (in.getInt() != BINARY_MAGIC) {
+				throw new IllegalArgumentException("Not a binary map");
+			}
+			byte formatVersion = in.get();
+			if (formatVersion != BINARY_VERSION) {
+				throw new IllegalArgumentException("Unknown binary map version: " + formatVersion);
+			}
+			int count = in.getInt();
+			if (count < 0 || in.remaining() != BINARY_POSE_BYTES + (long) count * BINARY_WALL_BYTES) {
+				throw new IllegalArgumentException("Binary map is " + data.length + " bytes, not right for " + count + " walls");
+			}
+			double gridSize = in.getInt() / BINARY_SCALE;
+			Pose startPose = new Pose(in.getInt() / BINARY_SCALE, in.getInt() / BINARY_SCALE, in.getInt() / BINARY_SCALE);
+			Wall.WallType[] types = Wall.WallType.values();
+			ArrayList<Wall> loaded = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				Point start = new Point(in.getInt() / BINARY_SCALE, in.getInt() / BINARY_SCALE);
+				Point end = new Point(in.getInt() / BINARY_SCALE, in.getInt() / BINARY_SCALE);
+				int type = in.get();
+				if (type < 0 || type >= types.length) {
+					throw new IllegalArgumentException("Bad wall type in binary map: " + type);
+				}
+				loaded.add(new Wall(start, end, types[type]));
+			}
+			load(gridSize, startPose, loaded);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Binary map is cut short", e);
 		}
 	}
 	
-	private double parseGridSize(String s) {
-		return Double.valueOf(s);
+	/*
+	 * Builds the clearance grid here, before the run, so that the first plan
+	 * does not have to. See setLazyClearance().
+	 */
+	private synchronized void load(double gridSize, Pose startPose, ArrayList<Wall> loaded) {
+		this.gridSize = gridSize;
+		this.startPose = startPose;
+		ArrayList<Wall> changed = new ArrayList<>(walls.size() + loaded.size());
+		changed.addAll(walls);
+		changed.addAll(loaded);
+		setWalls(changed);
+		buildClearance();
+	}
+	
+	/*
+	 * Adds a wall to the map, an opponent's seen during a run, say.
+	 */
+	public synchronized void addWall(Wall wall) {
+		ArrayList<Wall> changed = new ArrayList<>(walls);
+		changed.add(wall);
+		setWalls(changed);
 	}
 	
-	private Pose parsePose(String s) {
-		String[] parts = s.split(",");
-		return new Pose(Double.valueOf(parts[0]), Double.valueOf(parts[1]), Double.valueOf(parts[2]));
+	/*
+	 * Removes the wall, if it is on the map. Returns whether it was.
+	 */
+	public synchronized boolean removeWall(Wall wall) {
+		ArrayList<Wall> changed = new ArrayList<>(walls);
+		if (!changed.remove(wall)) {
+			return false;
+		}
+		setWalls(changed);
+		return true;
 	}
 	
-	private Wall parseWall(String s) {
-		String[] parts = s.split(",");
+	/*
+	 * Call after moving the ends of a wall that is already on the map.
+	 * Nothing else can tell that a Point has changed.
+	 */
+	public synchronized void invalidate() {
+		mapChanged();
+		buildClearance();
+	}
+	
+	/*
+	 * The walls are replaced before the version changes, so anyone who reads
+	 * getVersion() and then getWalls() never has older walls than the
+	 * version says.
+	 */
+	private void setWalls(ArrayList<Wall> changed) {
+		walls = Collections.unmodifiableList(changed);
+		mapChanged();
+	}
+	
+	private void mapChanged() {
+		clearance = null;
+		version++;
+	}
+	
+	private void buildClearance() {
+		if (!lazyClearance) {
+			clearance = new ClearanceGrid(walls, clearanceCellSize);
+		}
+	}
+	
+	/*
+	 * The walls as they are now. The list never changes, so take it once for
+	 * each piece of work and use that copy throughout, rather than asking
+	 * again. Something worked out from it and tagged with the version should
+	 * read getVersion() first.
+	 */
+	public List<Wall> getWalls() {
+		return walls;
+	}
+	
+	/*
+	 * A number that changes whenever the walls do (every load(), addWall(),
+	 * removeWall() and invalidate()), so that anything worked out from them
+	 * (plans, say) can tell when it is out of date.
+	 */
+	public synchronized int getVersion() {
+		return version;
+	}
+	
+	/*
+	 * Distance to the nearest wall from any point of the map, for collision
+	 * checks in planning. Built on load() and invalidate(), and again the
+	 * first time it is asked for after walls are added or removed.
+	 */
+	public synchronized ClearanceGrid getClearance() {
+		if (clearance == null) {
+			clearance = new ClearanceGrid(walls, clearanceCellSize);
+		}
+		return clearance;
+	}
+	
+	/*
+	 * Spacing of the clearance grid, in grid units. Finer grids are more
+	 * accurate between their nodes but take longer to build and more memory.
+	 */
+	public synchronized void setClearanceResolution(double cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("Bad clearance grid cell size: " + cellSize);
+		}
+		if (cellSize != clearanceCellSize) {
+			clearanceCellSize = cellSize;
+			mapChanged();
+		}
+	}
+	
+	/*
+	 * Whether load() and invalidate() leave the clearance grid to the first
+	 * getClearance(), for timing the parsing on its own. Off by default: on
+	 * the robot the first plan comes mid-run, when there is no time to build
+	 * the grid.
+	 */
+	public synchronized void setLazyClearance(boolean lazy) {
+		lazyClearance = lazy;
+	}
+	
+	/*
+	 * A cursor over a map in BotClient format. Numbers with few enough
+	 * digits are worked out from their digits directly, which gives the
+	 * same double as Double.parseDouble(); anything else (exponents, say)
+	 * goes to Double.parseDouble().
+	 */
+	private static class Parser {
+		// Powers of ten that are exact as doubles.
+		private final static double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+		// Integers up to this are exact as doubles.
+		private final static long MAX_EXACT = (1L << 53) - 1;
+		
+		private final CharSequence s;
+		private int pos = 0;
 		
-		Point start = new Point(Double.valueOf(parts[0]), Double.valueOf(parts[1]));
-		Point end = new Point(Double.valueOf(parts[2]), Double.valueOf(parts[3]));
-		Wall.WallType type = Wall.WallType.values()[Wall.WallTypeShort.valueOf(parts[4]).ordinal()];
+		Parser(CharSequence s) {
+			this.s = s;
+		}
+		
+		double number() {
+			skipSpace();
+			int start = pos;
+			boolean negative = false;
+			if (pos < s.length() && (s.charAt(pos) == '-' || s.charAt(pos) == '+')) {
+				negative = s.charAt(pos) == '-';
+				pos++;
+			}
+			long digits = 0;
+			int numDigits = 0;
+			int scale = 0; // Digits after the point.
+			boolean exact = true;
+			boolean point = false;
+			for (; pos < s.length(); pos++) {
+				char c = s.charAt(pos);
+				if (c >= '0' && c <= '9') {
+					numDigits++;
+					if (digits > (MAX_EXACT - 9) / 10) {
+						exact = false;
+					}
+					digits = 10 * digits + (c - '0');
+					if (point) {
+						scale++;
+					}
+				}
+				else if (c == '.' && !point) {
+					point = true;
+				}
+				else {
+					break;
+				}
+			}
+			if (numDigits > 0 && exact && scale < POWERS_OF_TEN.length && atSeparator()) {
+				double value = digits / POWERS_OF_TEN[scale];
+				return negative ? -value : value;
+			}
+			while (!atSeparator()) {
+				pos++;
+			}
+			try {
+				return Double.parseDouble(s.subSequence(start, pos).toString());
+			} catch (NumberFormatException e) {
+				pos = start;
+				throw error("a number");
+			}
+		}
+		
+		Wall.WallType wallType() {
+			skipSpace();
+			Wall.WallType type = (pos < s.length()) ? Wall.typeOf(s.charAt(pos)) : null;
+			if (type == null) {
+				throw error("a wall type");
+			}
+			pos++;
+			return type;
+		}
 		
-		return new Wall(start, end, type);
+		void expect(char c) {
+			skipSpace();
+			if (pos >= s.length() || s.charAt(pos) != c) {
+				throw error("'" + c + "'");
+			}
+			pos++;
+		}
+		
+		Parser comma() {
+			expect(',');
+			return this;
+		}
+		
+		/*
+		 * Steps over the separator if there is more after it; false at the
+		 * end, which may have one last separator.
+		 */
+		boolean next(char c) {
+			skipSpace();
+			if (pos == s.length()) {
+				return false;
+			}
+			expect(c);
+			skipSpace();
+			return pos < s.length();
+		}
+		
+		private boolean atSeparator() {
+			return pos == s.length() || s.charAt(pos) == ',' || s.charAt(pos) == ':' || Character.isWhitespace(s.charAt(pos));
+		}
+		
+		private void skipSpace() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+				pos++;
+			}
+		}
+		
+		private IllegalArgumentException error(String expected) {
+			return new IllegalArgumentException("Bad map string: expected " + expected + " at " + pos);
+		}
+	}
+	
+	/*
+	 * Appends the value as String.format("%.2f") would in an English locale.
+	 * Values that are close to halfway between hundredths, or too big to
+	 * scale exactly, are left to String.format() itself.
+	 */
+	private static void appendHundredths(StringBuilder sb, double value) {
+		double scaled = Math.abs(value) * BINARY_SCALE;
+		double whole = Math.floor(scaled);
+		if (!(scaled < 1e8) || Math.abs(scaled - whole - 0.5) < 1e-6) {
+			sb.append(String.format(Locale.ROOT, "%.2f", value));
+			return;
+		}
+		long hundredths = (long) whole + ((scaled - whole > 0.5) ? 1 : 0);
+		if (Double.doubleToRawLongBits(value) < 0) {
+			sb.append('-');
+		}
+		long fraction = hundredths % 100;
+		sb.append(hundredths / 100).append('.').append((char) ('0' + fraction / 10)).append((char) ('0' + fraction % 10));
 	}
 	
 	public static class Point {
@@ -60,11 +370,29 @@ public class BotClientMap {
 		
 		@Override
 		public String toString() {
-			return String.format("(%.2f, %.2f)", x, y);
+			StringBuilder sb = new StringBuilder();
+			appendTo(sb);
+			return sb.toString();
 		}
 		
 		public String toBotClientString() {
-			return String.format("%.2f,%.2f", x, y);
+			StringBuilder sb = new StringBuilder();
+			appendBotClientString(sb);
+			return sb.toString();
+		}
+		
+		void appendTo(StringBuilder sb) {
+			sb.append('(');
+			appendHundredths(sb, x);
+			sb.append(", ");
+			appendHundredths(sb, y);
+			sb.append(')');
+		}
+		
+		void appendBotClientString(StringBuilder sb) {
+			appendHundredths(sb, x);
+			sb.append(',');
+			appendHundredths(sb, y);
 		}
 	}
 	
@@ -77,12 +405,21 @@ public class BotClientMap {
 		}
 		
 		@Override
-		public String toString() {
-			return String.format("(%.2f, %.2f, %.2f)", x, y, theta);
+		void appendTo(StringBuilder sb) {
+			sb.append('(');
+			appendHundredths(sb, x);
+			sb.append(", ");
+			appendHundredths(sb, y);
+			sb.append(", ");
+			appendHundredths(sb, theta);
+			sb.append(')');
 		}
 		
-		public String toBotClientString() {
-			return String.format("%.2f,%.2f,%.2f", x, y, theta);
+		@Override
+		void appendBotClientString(StringBuilder sb) {
+			super.appendBotClientString(sb);
+			sb.append(',');
+			appendHundredths(sb, theta);
 		}
 	}
 	
@@ -101,32 +438,104 @@ public class BotClientMap {
 		}
 		
 
+		/*
+		 * The type with the given one-letter name, or null.
+		 */
+		static WallType typeOf(char c) {
+			switch (c) {
+				case 'N': return WallType.NORMAL;
+				case 'O': return WallType.OPPONENT;
+				case 'S': return WallType.SILO;
+				case 'R': return WallType.REACTOR;
+				default: return null;
+			}
+		}
+
 		@Override
 		public String toString() {
-			return String.format("Wall: %s\t[%s - %s]", type, start, end);
+			StringBuilder sb = new StringBuilder();
+			appendTo(sb);
+			return sb.toString();
 		}
 		
 		public String toBotClientString() {
-			return String.format("%s,%s,%s", start.toBotClientString(), end.toBotClientString(), WallTypeShort.values()[type.ordinal()]);
+			StringBuilder sb = new StringBuilder();
+			appendBotClientString(sb);
+			return sb.toString();
+		}
+		
+		void appendTo(StringBuilder sb) {
+			sb.append("Wall: ").append(type).append("\t[");
+			start.appendTo(sb);
+			sb.append(" - ");
+			end.appendTo(sb);
+			sb.append(']');
+		}
+		
+		void appendBotClientString(StringBuilder sb) {
+			start.appendBotClientString(sb);
+			sb.append(',');
+			end.appendBotClientString(sb);
+			sb.append(',').append(WallTypeShort.values()[type.ordinal()]);
 		}
 	}
 	
 	@Override
 	public String toString() {
-		String mapString = String.format("Grid Size: %.2f\n", gridSize);
-		mapString += "Pose: " + this.startPose.toString();
-		for (Wall w : walls)
-			mapString += "\n" + w.toString();
-		return mapString;
+		List<Wall> walls = this.walls;
+		StringBuilder sb = new StringBuilder(32 + 40 * walls.size());
+		sb.append("Grid Size: ");
+		appendHundredths(sb, gridSize);
+		sb.append("\nPose: ");
+		startPose.appendTo(sb);
+		for (Wall w : walls) {
+			sb.append('\n');
+			w.appendTo(sb);
+		}
+		return sb.toString();
 	}
 	
 	public String toBotClientString() {
-		String mapString = String.format("%.2f:", gridSize);
-		mapString += startPose.toBotClientString() + ":";
-		for (Wall w : walls)
-			mapString += w.toBotClientString() + ":";
-		
-		return mapString;
+		List<Wall> walls = this.walls;
+		StringBuilder sb = new StringBuilder(32 + 32 * walls.size());
+		appendHundredths(sb, gridSize);
+		sb.append(':');
+		startPose.appendBotClientString(sb);
+		sb.append(':');
+		for (Wall w : walls) {
+			w.appendBotClientString(sb);
+			sb.append(':');
+		}
+		return sb.toString();
+	}
+	
+	/*
+	 * The map in a compact binary form, for loadBinary(): a header (the
+	 * bytes "BCMB", a format version byte and the number of walls), the grid
+	 * size and start pose, then each wall's ends and type (a WallType
+	 * ordinal byte). Numbers are 32-bit integers in hundredths, the
+	 * precision of the BotClient string, so a wall takes 17 bytes.
+	 */
+	public byte[] toBinary() {
+		List<Wall> walls = this.walls;
+		ByteBuffer out = ByteBuffer.allocate(BINARY_HEADER_BYTES + BINARY_POSE_BYTES + walls.size() * BINARY_WALL_BYTES);
+		out.putInt(BINARY_MAGIC).put(BINARY_VERSION).putInt(walls.size());
+		out.putInt(hundredths(gridSize));
+		out.putInt(hundredths(startPose.x)).putInt(hundredths(startPose.y)).putInt(hundredths(startPose.theta));
+		for (Wall w : walls) {
+			out.putInt(hundredths(w.start.x)).putInt(hundredths(w.start.y));
+			out.putInt(hundredths(w.end.x)).putInt(hundredths(w.end.y));
+			out.put((byte) w.type.ordinal());
+		}
+		return out.array();
+	}
+	
+	private static int hundredths(double value) {
+		long scaled = Math.round(value * BINARY_SCALE);
+		if (scaled < Integer.MIN_VALUE || scaled > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too big for a binary map: " + value);
+		}
+		return (int) scaled;
 	}
 	
 	public static BotClientMap getDefaultMap() {
@@ -0,0 +1,237 @@
+package comm;
+
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+import java.util.List;
+
+import comm.BotClientMap.Wall;
+
+/*
+ * Distance from points of a map to the nearest wall, precomputed on a square
+ * grid so that path planning can check a point's clearance with an array
+ * lookup instead of measuring it against every wall.
+ *
+ * The grid covers the bounding box of the walls plus MAX_CLEARANCE on each
+ * side, with its nodes on multiples of the cell size, so points on a lattice
+ * that the cell size divides (PathFinder's half squares, say) fall on
+ * nodes, or within rounding error of them, and read the node's distance
+ * less at most that error. Between nodes the distance is bounded from below: no point is
+ * closer to a wall than a node's distance less the way to that node, so a
+ * point between nodes reads the best of those bounds over the corners of its
+ * cell. Reads are never more than the true distance, so a check can never
+ * let the robot closer to a wall than it asked for.
+ *
+ * Distances are only worked out up to MAX_CLEARANCE grid units; anything
+ * further away from every wall reads as MAX_CLEARANCE on a node and a little
+ * less between them. Points off the grid fall back to measuring against the
+ * walls.
+ */
+public class ClearanceGrid {
+	public final static double DEFAULT_CELL_SIZE = 0.05; // Grid units, ~1 inch on a 22 inch grid.
+	public final static double MAX_CLEARANCE = 1.0;
+
+	private final Wall[] walls;
+	private final double cellSize;
+	private final double halfDiagonal; // Furthest any point of a cell is from its nearest corner.
+	private final double minX;
+	private final double minY;
+	private final int width; // Nodes along x.
+	private final int height; // Nodes along y.
+	private final float[] clearance;
+
+	public ClearanceGrid(List<Wall> walls, double cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("Bad clearance grid cell size: " + cellSize);
+		}
+		this.walls = walls.toArray(new Wall[walls.size()]);
+		this.cellSize = cellSize;
+		this.halfDiagonal = cellSize * Math.sqrt(0.5);
+
+		double minx = Double.POSITIVE_INFINITY;
+		double maxx = Double.NEGATIVE_INFINITY;
+		double miny = Double.POSITIVE_INFINITY;
+		double maxy = Double.NEGATIVE_INFINITY;
+		for (Wall w : walls) {
+			minx = Math.min(minx, Math.min(w.start.x, w.end.x));
+			maxx = Math.max(maxx, Math.max(w.start.x, w.end.x));
+			miny = Math.min(miny, Math.min(w.start.y, w.end.y));
+			maxy = Math.max(maxy, Math.max(w.start.y, w.end.y));
+		}
+		if (walls.isEmpty()) {
+			minx = maxx = miny = maxy = 0;
+		}
+		this.minX = cellSize * Math.floor((minx - MAX_CLEARANCE) / cellSize);
+		this.minY = cellSize * Math.floor((miny - MAX_CLEARANCE) / cellSize);
+		this.width = (int) Math.ceil((maxx + MAX_CLEARANCE - minX) / cellSize) + 1;
+		this.height = (int) Math.ceil((maxy + MAX_CLEARANCE - minY) / cellSize) + 1;
+		this.clearance = new float[width * height];
+		build();
+	}
+
+	/*
+	 * Every node starts at MAX_CLEARANCE, and each wall only lowers the nodes
+	 * within MAX_CLEARANCE of its bounding box, so the cost grows with the
+	 * length of the walls rather than with walls times the area of the map.
+	 */
+	private void build() {
+		Arrays.fill(clearance, (float) MAX_CLEARANCE);
+		for (Wall w : walls) {
+			int i0 = Math.max(0, (int) Math.floor((Math.min(w.start.x, w.end.x) - MAX_CLEARANCE - minX) / cellSize));
+			int i1 = Math.min(width - 1, (int) Math.ceil((Math.max(w.start.x, w.end.x) + MAX_CLEARANCE - minX) / cellSize));
+			int j0 = Math.max(0, (int) Math.floor((Math.min(w.start.y, w.end.y) - MAX_CLEARANCE - minY) / cellSize));
+			int j1 = Math.min(height - 1, (int) Math.ceil((Math.max(w.start.y, w.end.y) + MAX_CLEARANCE - minY) / cellSize));
+			for (int i = i0; i <= i1; i++) {
+				double x = minX + i * cellSize;
+				int index = i * height;
+				for (int j = j0; j <= j1; j++) {
+					double dist = Line2D.ptSegDist(w.start.x, w.start.y, w.end.x, w.end.y, x, minY + j * cellSize);
+					// Round down, so that a node never reads further from the wall than it is
+					float d = (float) dist;
+					if (d > dist) {
+						d = Math.nextDown(d);
+					}
+					if (d < clearance[index + j]) {
+						clearance[index + j] = d;
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Distance from (x, y) to the nearest wall, in grid units, or
+	 * MAX_CLEARANCE if that is further. Between nodes this may be a little
+	 * less than the true distance, never more.
+	 */
+	public double clearance(double x, double y) {
+		double u = (x - minX) / cellSize;
+		double v = (y - minY) / cellSize;
+		int i = (int) Math.floor(u);
+		int j = (int) Math.floor(v);
+		double fu = u - i;
+		double fv = v - j;
+		if (i < 0 || j < 0 || i + (fu > 0 ? 1 : 0) >= width || j + (fv > 0 ? 1 : 0) >= height) {
+			return measure(x, y);
+		}
+		int index = i * height + j;
+		if (fu == 0 && fv == 0) {
+			return clearance[index];
+		}
+		int right = (fu > 0) ? height : 0;
+		int up = (fv > 0) ? 1 : 0;
+		double best = clearance[index] - cellSize * Math.hypot(fu, fv);
+		best = Math.max(best, clearance[index + right] - cellSize * Math.hypot(1 - fu, fv));
+		best = Math.max(best, clearance[index + up] - cellSize * Math.hypot(fu, 1 - fv));
+		best = Math.max(best, clearance[index + right + up] - cellSize * Math.hypot(1 - fu, 1 - fv));
+		return Math.max(0, best);
+	}
+
+	/*
+	 * Whether (x, y) is at least the given distance from every wall.
+	 * Distances above MAX_CLEARANCE cannot be told apart.
+	 */
+	public boolean isClear(double x, double y, double distance) {
+		return clearance(x, y) >= distance;
+	}
+
+	/*
+	 * Whether every point of the segment from (x1, y1) to (x2, y2) is at
+	 * least the given distance from every wall. This walks the cells the
+	 * segment passes through, in order, and a cell passes if all its corners
+	 * are at least half a cell diagonal further from the walls than the
+	 * distance, so segments that run within a cell or so of the distance may
+	 * be turned down. Distances within half a cell diagonal of MAX_CLEARANCE
+	 * always fail. Segments that leave the grid are measured against the
+	 * walls.
+	 */
+	public boolean isClear(double x1, double y1, double x2, double y2, double distance) {
+		double u1 = (x1 - minX) / cellSize;
+		double v1 = (y1 - minY) / cellSize;
+		double u2 = (x2 - minX) / cellSize;
+		double v2 = (y2 - minY) / cellSize;
+		if (!(Math.min(u1, u2) >= 0 && Math.min(v1, v2) >= 0 && Math.max(u1, u2) <= width - 1 && Math.max(v1, v2) <= height - 1)) {
+			return measureClear(x1, y1, x2, y2, distance);
+		}
+		double threshold = distance + halfDiagonal;
+
+		// Cells are numbered by their bottom left node; a point on the top or
+		// right edge of the grid is in the cell below or to the left.
+		int i = Math.min((int) u1, width - 2);
+		int j = Math.min((int) v1, height - 2);
+		int iEnd = Math.min((int) u2, width - 2);
+		int jEnd = Math.min((int) v2, height - 2);
+		int di = (iEnd > i) ? 1 : -1;
+		int dj = (jEnd > j) ? 1 : -1;
+
+		// Fraction of the segment at which it next crosses a column and a
+		// row boundary, and how far apart those crossings are.
+		double du = Math.abs(u2 - u1);
+		double dv = Math.abs(v2 - v1);
+		double nextU = (du == 0) ? Double.POSITIVE_INFINITY : ((di > 0) ? i + 1 - u1 : u1 - i) / du;
+		double nextV = (dv == 0) ? Double.POSITIVE_INFINITY : ((dj > 0) ? j + 1 - v1 : v1 - j) / dv;
+		double stepU = 1 / du;
+		double stepV = 1 / dv;
+
+		// Count the steps rather than compare crossings with the end, so
+		// rounding cannot walk past the last cell.
+		for (int steps = Math.abs(iEnd - i) + Math.abs(jEnd - j); ; steps--) {
+			int index = i * height + j;
+			if (clearance[index] < threshold || clearance[index + 1] < threshold
+					|| clearance[index + height] < threshold || clearance[index + height + 1] < threshold) {
+				return false;
+			}
+			if (steps == 0) {
+				return true;
+			}
+			if (j == jEnd || (i != iEnd && nextU < nextV)) {
+				i += di;
+				nextU += stepU;
+			}
+			else {
+				j += dj;
+				nextV += stepV;
+			}
+		}
+	}
+
+	/*
+	 * The segment check for segments off the grid, against every wall whose
+	 * bounding box comes close enough to the segment's.
+	 */
+	private boolean measureClear(double x1, double y1, double x2, double y2, double distance) {
+		double minx = Math.min(x1, x2) - distance;
+		double maxx = Math.max(x1, x2) + distance;
+		double miny = Math.min(y1, y2) - distance;
+		double maxy = Math.max(y1, y2) + distance;
+		for (Wall w : walls) {
+			if (Math.max(w.start.x, w.end.x) < minx || Math.min(w.start.x, w.end.x) > maxx
+					|| Math.max(w.start.y, w.end.y) < miny || Math.min(w.start.y, w.end.y) > maxy) {
+				continue;
+			}
+			if (Line2D.linesIntersect(x1, y1, x2, y2, w.start.x, w.start.y, w.end.x, w.end.y)
+					|| Line2D.ptSegDist(x1, y1, x2, y2, w.start.x, w.start.y) < distance
+					|| Line2D.ptSegDist(x1, y1, x2, y2, w.end.x, w.end.y) < distance
+					|| Line2D.ptSegDist(w.start.x, w.start.y, w.end.x, w.end.y, x1, y1) < distance
+					|| Line2D.ptSegDist(w.start.x, w.start.y, w.end.x, w.end.y, x2, y2) < distance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double measure(double x, double y) {
+		double best = MAX_CLEARANCE;
+		for (Wall w : walls) {
+			best = Math.min(best, Line2D.ptSegDist(w.start.x, w.start.y, w.end.x, w.end.y, x, y));
+		}
+		return best;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public long sizeInBytes() {
+		return 4L * clearance.length;
+	}
+}
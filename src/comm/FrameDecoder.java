@@ -0,0 +1,160 @@
+package comm;
+
+/*
+ * Incremental decoder for the sensor data frames the Maple sends back
+ * (RESPONSE signal, data, END signal). Raw bytes are fed into a ring buffer
+ * in whatever chunks the serial port hands over, and complete frames are cut
+ * out of it. A frame that is not terminated with the END signal is counted
+ * as corrupt and dropped, and decoding resynchronizes by skipping past the
+ * next END signal before looking for a RESPONSE signal again, so that an 'R'
+ * among the dropped frame's data is not taken for the start of a frame.
+ *
+ * Only one thread may feed and decode; the counters may be read from any
+ * thread.
+ */
+public class FrameDecoder {
+
+	public enum Result {
+		FRAME, CORRUPT, NEED_MORE
+	}
+
+	private final int frameSize;
+	private final byte[] ring;
+	private final int mask;
+	private int head = 0;
+	private int count = 0;
+	private boolean resync = false; // Skip through the next END signal before seeking a header.
+
+	private volatile long decodedFrames = 0;
+	private volatile long corruptFrames = 0;
+	private volatile long droppedFrames = 0;
+	private volatile long discardedBytes = 0;
+
+	/*
+	 * dataSize is the number of bytes between the RESPONSE and END signals.
+	 */
+	public FrameDecoder(int dataSize) {
+		frameSize = dataSize + 2;
+		int capacity = 64;
+		while (capacity < 4 * frameSize) {
+			capacity <<= 1;
+		}
+		ring = new byte[capacity];
+		mask = capacity - 1;
+	}
+
+	/*
+	 * Number of bytes that can be fed without overwriting buffered data.
+	 */
+	public int free() {
+		return ring.length - count;
+	}
+
+	/*
+	 * Number of bytes fed but not yet decoded or skipped.
+	 */
+	public int buffered() {
+		return count;
+	}
+
+	/*
+	 * Append raw bytes from the serial port. If the ring buffer overflows,
+	 * the oldest bytes are discarded and the frames they belonged to are
+	 * counted as dropped.
+	 */
+	public void feed(byte[] data, int offset, int length) {
+		if (length > ring.length) {
+			dropped(length - ring.length);
+			offset += length - ring.length;
+			length = ring.length;
+		}
+		int overflow = length - free();
+		if (overflow > 0) {
+			discard(overflow);
+		}
+		int tail = (head + count) & mask;
+		int first = Math.min(length, ring.length - tail);
+		System.arraycopy(data, offset, ring, tail, first);
+		System.arraycopy(data, offset + first, ring, 0, length - first);
+		count += length;
+	}
+
+	/*
+	 * Skip anything that is not the start of a frame. Returns true if a
+	 * RESPONSE signal is now at the front of the buffer.
+	 */
+	public boolean seekHeader() {
+		int skipped = 0;
+		while (resync && count > 0) {
+			resync = ring[head] != MapleIO.END_SIGNAL;
+			head = (head + 1) & mask;
+			count--;
+			skipped++;
+		}
+		while (count > 0 && ring[head] != MapleIO.RESPONSE_SIGNAL) {
+			head = (head + 1) & mask;
+			count--;
+			skipped++;
+		}
+		if (skipped > 0) {
+			discardedBytes += skipped;
+		}
+		return count > 0;
+	}
+
+	/*
+	 * Try to cut the next frame out of the buffer, copying its data into
+	 * data (which must hold at least dataSize bytes).
+	 */
+	public Result decode(byte[] data) {
+		if (!seekHeader() || count < frameSize) {
+			return Result.NEED_MORE;
+		}
+		if (ring[(head + frameSize - 1) & mask] != MapleIO.END_SIGNAL) {
+			// Drop the RESPONSE signal, and the rest up to the END signal that
+			// finishes whatever frame we are in the middle of.
+			head = (head + 1) & mask;
+			count--;
+			corruptFrames++;
+			discardedBytes++;
+			resync = true;
+			return Result.CORRUPT;
+		}
+		int start = (head + 1) & mask;
+		int dataSize = frameSize - 2;
+		int first = Math.min(dataSize, ring.length - start);
+		System.arraycopy(ring, start, data, 0, first);
+		System.arraycopy(ring, 0, data, first, dataSize - first);
+		head = (head + frameSize) & mask;
+		count -= frameSize;
+		decodedFrames++;
+		return Result.FRAME;
+	}
+
+	public long getDecodedFrames() {
+		return decodedFrames;
+	}
+
+	public long getCorruptFrames() {
+		return corruptFrames;
+	}
+
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	public long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	private void discard(int n) {
+		head = (head + n) & mask;
+		count -= n;
+		dropped(n);
+	}
+
+	private void dropped(int n) {
+		discardedBytes += n;
+		droppedFrames += (n + frameSize - 1) / frameSize;
+	}
+}
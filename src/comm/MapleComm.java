@@ -4,8 +4,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
+import jssc.SerialPort;
 import devices.MapleDevice;
 
 public class MapleComm {
@@ -13,10 +19,39 @@ public class MapleComm {
 	private List<MapleDevice> deviceList = new ArrayList<MapleDevice>();
 	private int consumeSize = 0;
 	
+	// Guards sensor reads; transmit() synchronizes on this MapleComm instead,
+	// so commands never wait behind a read.
+	private final Object sensorLock = new Object();
+	private final List<SensorDataListener> listeners = new CopyOnWriteArrayList<SensorDataListener>();
+	private Thread sensorReader;
+	private int streamingPeriodMillis = 0;
+	private volatile int pollPeriodMillis = 10;
+	private volatile boolean streaming = false;
+	private byte[] message;
+	private long framesProcessed = 0;
+	private Map<MapleDevice, Integer> snapshotOffsets;
+	private final AtomicReference<SensorSnapshot> latestSnapshot = new AtomicReference<SensorSnapshot>();
+	
+	// The last command successfully sent for each device, stored back to back
+	// (see transmit())
+	private byte[] lastCommands;
+	private int[] framePositions;
+	private boolean needsFullRefresh = true;
+	private int fullRefreshInterval = 0;
+	private int transmitsSinceFullRefresh = 0;
+	
 	public MapleComm(MapleIO.SerialPortType portType) {
 		mapleIO = new MapleIO();
 		mapleIO.connect(portType);
 	}
+	
+	/*
+	 * Talk to the Maple through the given port, e.g. a MapleEmulator.
+	 */
+	public MapleComm(SerialPort port) {
+		mapleIO = new MapleIO();
+		mapleIO.connect(port);
+	}
 
 	/*
 	 * Add a device to the device list.
@@ -38,56 +73,363 @@ public class MapleComm {
 		// Construct the initialization message
 		ByteArrayOutputStream data = new ByteArrayOutputStream();
 		data.write((byte) deviceList.size());
+		int commandSize = 0;
+		Map<MapleDevice, Integer> offsets = new IdentityHashMap<MapleDevice, Integer>();
 		for (MapleDevice device : deviceList) {
+			offsets.put(device, consumeSize);
 			consumeSize += device.expectedNumBytesFromMaple();
+			if (device.commandSizeToMaple() > 0) {
+				commandSize += 1 + device.commandSizeToMaple();
+			}
 			try {
 				data.write(device.getDeviceCode());
 				data.write(device.getInitializationBytes());
 			} catch (IOException e) { }
 		}
 		mapleIO.setExpectedInboundMessageSize(consumeSize);
+		message = new byte[consumeSize];
+		snapshotOffsets = Collections.unmodifiableMap(offsets);
+		mapleIO.setMaxOutboundMessageSize(commandSize);
+		lastCommands = new byte[commandSize];
+		framePositions = new int[deviceList.size()];
+		needsFullRefresh = true;
 
 		// Transmit the initialization message
 		mapleIO.sendInitMessage(data);
+		
+		if (streamingPeriodMillis > 0) {
+			negotiateStreaming();
+		}
+	}
+	
+	/*
+	 * Ask the Maple to push sensor data every periodMillis instead of waiting
+	 * for a GET for each frame. Must be called before initialize(); if the
+	 * Maple does not start streaming, MapleComm falls back to polling. Off
+	 * (zero) by default; only firmware that knows the STREAM signal (so far,
+	 * just MapleEmulator) can stream, and any other sees unknown bytes.
+	 */
+	public void setStreamingPeriod(int periodMillis) {
+		streamingPeriodMillis = periodMillis;
+	}
+	
+	/*
+	 * The shortest time between sensor data requests from the reader thread.
+	 * Ten milliseconds by default, as the old polling loop slept.
+	 */
+	public void setPollPeriod(int periodMillis) {
+		pollPeriodMillis = periodMillis;
+	}
+	
+	/*
+	 * Whether the Maple agreed to stream sensor data during initialize().
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+	
+	/*
+	 * Send the streaming request and wait for the first pushed frame. Older
+	 * firmware ignores the request, so no frame means no streaming.
+	 */
+	private void negotiateStreaming() {
+		mapleIO.sendStreamRequest(streamingPeriodMillis);
+		synchronized (sensorLock) {
+			if (mapleIO.readResponse(message, streamTimeoutMillis())) {
+				streaming = true;
+				processMessage();
+			} else {
+				System.err.println("Maple did not start streaming; polling sensor data instead");
+				mapleIO.sendStreamRequest(0);
+			}
+		}
+	}
+	
+	private int streamTimeoutMillis() {
+		return Math.max(MapleIO.RESPONSE_TIMEOUT_MILLIS, 4 * streamingPeriodMillis);
 	}
 
 	/*
-	 * Send commands (e.g. motor velocity) to the Maple
+	 * Send commands (e.g. motor velocity) to the Maple. Only devices whose
+	 * command changed since it was last sent are included, unless a full
+	 * refresh is due.
 	 */
 	public synchronized void transmit() {
+		// Counted whether or not anything is sent, so that the refresh still
+		// comes round while the commands are not changing
+		transmitsSinceFullRefresh++;
+		boolean full = needsFullRefresh || (fullRefreshInterval > 0 && transmitsSinceFullRefresh >= fullRefreshInterval);
 
-		// Combine commands for all actuators that we want to actuate
-		ByteArrayOutputStream data = new ByteArrayOutputStream();
-		byte counter = 0;
-		for (MapleDevice device : deviceList) {
-			byte[] command = device.generateCommandToMaple();
-			if (command.length > 0) {
-				data.write(counter);
-				try {
-					data.write(command);
-				} catch (IOException e) { }
+		// Combine commands for all actuators that we want to actuate, directly
+		// into the preallocated outbound frame
+		ByteBuffer data = mapleIO.beginCommand();
+		byte[] frame = data.array();
+		int lastOffset = 0;
+		for (int i = 0; i < deviceList.size(); i++) {
+			MapleDevice device = deviceList.get(i);
+			int size = device.commandSizeToMaple();
+			framePositions[i] = -1;
+			if (size == 0) {
+				continue;
+			}
+			int start = data.position();
+			data.put((byte) i);
+			device.writeCommandToMaple(data);
+			if (!full && sameBytes(frame, start + 1, lastCommands, lastOffset, size)) {
+				// Unchanged; take it back out of the frame
+				data.position(start);
+			} else {
+				framePositions[i] = start + 1;
 			}
-			counter++;
+			lastOffset += size;
+		}
+		
+		// Nothing changed, so there is nothing to send
+		if (data.position() == 1) {
+			return;
 		}
 
-		// Transmit the combined commands
-		mapleIO.sendCommand(data);
+		// Transmit the combined commands, and remember what the Maple now has
+		if (mapleIO.sendCommand()) {
+			lastOffset = 0;
+			for (int i = 0; i < deviceList.size(); i++) {
+				int size = deviceList.get(i).commandSizeToMaple();
+				if (framePositions[i] >= 0) {
+					System.arraycopy(frame, framePositions[i], lastCommands, lastOffset, size);
+				}
+				lastOffset += size;
+			}
+			if (full) {
+				needsFullRefresh = false;
+				transmitsSinceFullRefresh = 0;
+			}
+		}
+	}
+	
+	/*
+	 * Re-send every actuator's command every n calls to transmit(), in case
+	 * the Maple missed an update. Zero (the default) disables this.
+	 */
+	public synchronized void setFullRefreshInterval(int n) {
+		fullRefreshInterval = n;
+	}
+	
+	/*
+	 * Re-send every actuator's command on the next call to transmit().
+	 */
+	public synchronized void requestFullRefresh() {
+		needsFullRefresh = true;
 	}
 	
 	/*
-	 * Wait for, and process, up-to-date sensor data from the Maple
+	 * Wait for, and process, up-to-date sensor data from the Maple. If
+	 * polling has been started, this just waits for the reader thread to
+	 * process the next frame, and polls for it here if the reader thread
+	 * stops first. A frame that is corrupt or does not arrive in time is
+	 * asked for again, as the reader thread would.
 	 */
-	public synchronized void updateSensorData() {
-		mapleIO.sendSensorDataRequest();
-		try {
-			Thread.sleep(1);
-		} catch (InterruptedException e) { }
-		ByteBuffer buff = ByteBuffer.wrap(mapleIO.getMostRecentMessage());
+	public void updateSensorData() {
+		synchronized (sensorLock) {
+			if (sensorReader != null) {
+				long target = framesProcessed + 1;
+				while (framesProcessed < target && sensorReader != null) {
+					try {
+						sensorLock.wait(MapleIO.RESPONSE_TIMEOUT_MILLIS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (framesProcessed >= target) {
+					return;
+				}
+			}
+			if (streaming) {
+				while (!mapleIO.readResponse(message, streamTimeoutMillis())) {
+					mapleIO.sendStreamRequest(streamingPeriodMillis);
+				}
+			} else {
+				mapleIO.sendSensorDataRequest();
+				while (!mapleIO.readResponse(message, MapleIO.RESPONSE_TIMEOUT_MILLIS)) {
+					mapleIO.sendSensorDataRequest();
+				}
+			}
+			processMessage();
+		}
+	}
+	
+	/*
+	 * Returns the most recently processed frame, or null if none has been
+	 * received yet. Safe to call from any thread without locking.
+	 */
+	public SensorSnapshot getLatestSnapshot() {
+		return latestSnapshot.get();
+	}
+	
+	/*
+	 * Be notified every time new sensor data has been processed.
+	 */
+	public void addSensorDataListener(SensorDataListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeSensorDataListener(SensorDataListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/*
+	 * Start continually requesting and processing sensor data on a dedicated
+	 * reader thread. Requests are pipelined: the next GET is sent as soon as
+	 * the header of the previous response arrives, so the Maple can start
+	 * preparing it while we are still reading the current frame. Only one
+	 * GET is outstanding at a time, and GETs are at least the poll period
+	 * apart (see setPollPeriod()). If a response goes missing, the request
+	 * is re-sent after a timeout.
+	 * 
+	 * If the Maple is streaming, the reader thread just consumes the frames
+	 * it pushes, and repeats the streaming request if they stop arriving.
+	 * 
+	 * An exception while reading a frame is logged and the frame dropped.
+	 * Once the reader thread stops, for whatever reason, updateSensorData()
+	 * goes back to polling on the caller's thread.
+	 */
+	public void startSensorPolling() {
+		synchronized (sensorLock) {
+			if (sensorReader != null) {
+				return;
+			}
+			sensorReader = new Thread(new Runnable() {
+				public void run() {
+					try {
+						if (streaming) {
+							consumeStream();
+						} else {
+							pollPipelined();
+						}
+					} finally {
+						synchronized (sensorLock) {
+							if (sensorReader == Thread.currentThread()) {
+								sensorReader = null;
+							}
+							sensorLock.notifyAll();
+						}
+					}
+				}
+			}, "MapleComm sensor reader");
+			sensorReader.setDaemon(true);
+			sensorReader.start();
+		}
+	}
+	
+	/*
+	 * Interrupt the reader thread. It stops once its current read returns,
+	 * which with a real serial port can take up to a response timeout.
+	 */
+	public void stopSensorPolling() {
+		synchronized (sensorLock) {
+			if (sensorReader != null) {
+				sensorReader.interrupt();
+			}
+		}
+	}
+	
+	private void pollPipelined() {
+		boolean pending = false; // Whether a GET has been sent and not answered.
+		long lastRequest = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				if (!pending) {
+					long wait = lastRequest + pollPeriodMillis * 1000000L - System.nanoTime();
+					if (wait > 0) {
+						try {
+							Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					// Input already waiting is the answer to a GET that timed out
+					// but was not lost, so read that rather than ask again
+					if (!mapleIO.hasInput()) {
+						mapleIO.sendSensorDataRequest();
+						lastRequest = System.nanoTime();
+					}
+					pending = true;
+				}
+				if (!mapleIO.waitForResponseHeader(MapleIO.RESPONSE_TIMEOUT_MILLIS)) {
+					// Lost, so ask again
+					pending = false;
+					continue;
+				}
+				pending = false;
+				if (System.nanoTime() - lastRequest >= pollPeriodMillis * 1000000L) {
+					mapleIO.sendSensorDataRequest();
+					lastRequest = System.nanoTime();
+					pending = true;
+				}
+				synchronized (sensorLock) {
+					if (mapleIO.readResponse(message, MapleIO.RESPONSE_TIMEOUT_MILLIS)) {
+						processMessage();
+					}
+				}
+			} catch (RuntimeException e) {
+				// A lost request is re-sent on the next timeout
+				System.err.println("Failed to read sensor data: " + e);
+			}
+		}
+	}
+	
+	private void consumeStream() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				if (!mapleIO.waitForResponseHeader(streamTimeoutMillis())) {
+					mapleIO.sendStreamRequest(streamingPeriodMillis);
+					continue;
+				}
+				synchronized (sensorLock) {
+					if (mapleIO.readResponse(message, streamTimeoutMillis())) {
+						processMessage();
+					}
+				}
+			} catch (RuntimeException e) {
+				System.err.println("Failed to read sensor data: " + e);
+			}
+		}
+	}
+	
+	/*
+	 * Must be called with sensorLock held. A listener that throws is logged
+	 * and does not stop the others, or the thread reading the frames.
+	 */
+	private void processMessage() {
+		long timestamp = System.nanoTime();
+		ByteBuffer buff = ByteBuffer.wrap(message);
 		
 		// Give the byte buffer to each device and let it take what it needs
 		for (MapleDevice device : deviceList) {
 			device.consumeMessageFromMaple(buff);
 		}
+		framesProcessed++;
+		
+		// Publish an immutable copy for readers on other threads
+		SensorSnapshot snapshot = new SensorSnapshot(framesProcessed, timestamp, message.clone(), snapshotOffsets);
+		latestSnapshot.set(snapshot);
+		sensorLock.notifyAll();
+		for (SensorDataListener listener : listeners) {
+			try {
+				listener.sensorDataUpdated(snapshot);
+			} catch (RuntimeException e) {
+				System.err.println("Sensor data listener failed: " + e);
+			}
+		}
+	}
+
+	private static boolean sameBytes(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i]) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/*
@@ -0,0 +1,663 @@
+package comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import jssc.SerialPort;
+import jssc.SerialPortTimeoutException;
+
+/*
+ * Emulates a Maple board running our firmware behind a serial port, so that
+ * everything above MapleIO can be run and benchmarked without a robot.
+ *
+ * It parses INIT, SET, GET and STREAM frames, keeps the state of every
+ * registered device, and answers with correctly sized sensor data frames.
+ * Bytes travel at the configured baud rate (8N1, so ten bits per byte) in
+ * each direction: a response cannot start before the request has fully
+ * arrived, and its bytes become readable one at a time as they would over a
+ * real link. Turn this off with setRealTime(false) to measure the host side
+ * alone.
+ *
+ * Sensor readings come from a SensorModel if one is set; otherwise they are
+ * plausible values for a robot standing still in an open field.
+ */
+public class MapleEmulator extends SerialPort {
+
+	public static final int BAUD_RATE = 115200;
+
+	/*
+	 * Supplies sensor readings. update() is called just before each sensor
+	 * data frame is built, with the emulator's lock held.
+	 */
+	public interface SensorModel {
+		public void update(MapleEmulator maple, long nanoTime);
+	}
+
+	/*
+	 * Emulated state for one registered device.
+	 */
+	public static class Device {
+		private final byte code;
+		private final byte[] initializationBytes;
+		private final int commandSize;
+		private final int readingSize;
+		private volatile int command;
+		private volatile int reading;
+
+		private Device(byte code, byte[] initializationBytes) {
+			this.code = code;
+			this.initializationBytes = initializationBytes;
+			this.commandSize = commandSize(code);
+			this.readingSize = readingSize(code);
+		}
+
+		public byte getDeviceCode() {
+			return code;
+		}
+
+		public byte[] getInitializationBytes() {
+			return initializationBytes.clone();
+		}
+
+		// The last value received in a SET frame, as sent by the host. Cytron
+		// speeds are signed; everything else is unsigned.
+		public int getCommand() {
+			return command;
+		}
+
+		// The raw value to report in the next sensor data frame
+		public void setReading(int reading) {
+			this.reading = reading;
+		}
+
+		/*
+		 * Encoders report the ticks counted since the previous frame, so their
+		 * reading is accumulated here and reset every time it is sent.
+		 */
+		public void addReading(int delta) {
+			this.reading += delta;
+		}
+
+		public int getReading() {
+			return reading;
+		}
+	}
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final List<Device> devices = new ArrayList<Device>();
+	private final Random random = new Random(0);
+	private SensorModel model;
+	private boolean realTime = true;
+	private boolean verbose = false;
+	private boolean opened = false;
+	private long nanosPerByte = 10 * 1000000000L / BAUD_RATE;
+
+	// Bytes from the host that have not formed a complete frame yet
+	private byte[] inbound = new byte[256];
+	private int inboundCount = 0;
+	private long inboundBusyUntil = 0;
+
+	// Bytes to the host, each with the time it becomes readable
+	private byte[] outbound = new byte[1024];
+	private long[] outboundReady = new long[1024];
+	private int outboundHead = 0;
+	private int outboundCount = 0;
+	private long outboundBusyUntil = 0;
+
+	private int streamingPeriodMillis = 0;
+	private long nextStreamFrame = 0;
+	private int framesToCorrupt = 0;
+
+	private long framesReceived = 0;
+	private long sensorFramesSent = 0;
+	private long bytesReceived = 0;
+	private long bytesSent = 0;
+	private long lastSensorFrameDelivered = 0;
+	private long commandLatencyNanos = 0;
+	private long commandLatencyTotalNanos = 0;
+	private long commandLatencySamples = 0;
+
+	public MapleEmulator() {
+		super("emulated-maple");
+	}
+
+	public synchronized void setSensorModel(SensorModel model) {
+		this.model = model;
+	}
+
+	/*
+	 * Whether to model the time bytes take to cross the serial link.
+	 */
+	public synchronized void setRealTime(boolean realTime) {
+		this.realTime = realTime;
+	}
+
+	/*
+	 * Print every frame in each direction, in hex.
+	 */
+	public synchronized void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/*
+	 * Send the next count sensor data frames with a garbled END signal, as
+	 * a noisy line would deliver them.
+	 */
+	public synchronized void corruptSensorFrames(int count) {
+		framesToCorrupt = count;
+	}
+
+	public synchronized List<Device> getDevices() {
+		return Collections.unmodifiableList(new ArrayList<Device>(devices));
+	}
+
+	public synchronized Device getDevice(int index) {
+		return devices.get(index);
+	}
+
+	public synchronized boolean isStreaming() {
+		return streamingPeriodMillis > 0;
+	}
+
+	public synchronized long getFramesReceived() {
+		return framesReceived;
+	}
+
+	public synchronized long getSensorFramesSent() {
+		return sensorFramesSent;
+	}
+
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/*
+	 * Time from the last byte of a sensor data frame becoming readable to the
+	 * first SET frame that arrived after it, i.e. the host's control loop
+	 * latency, for the most recent frame and averaged over all of them.
+	 */
+	public synchronized long getCommandLatencyNanos() {
+		return commandLatencyNanos;
+	}
+
+	public synchronized double getAverageCommandLatencyNanos() {
+		return commandLatencySamples == 0 ? 0 : (double) commandLatencyTotalNanos / commandLatencySamples;
+	}
+
+	// ---- SerialPort ----
+
+	@Override
+	public synchronized boolean openPort() {
+		opened = true;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean closePort() {
+		opened = false;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isOpened() {
+		return opened;
+	}
+
+	@Override
+	public synchronized boolean setParams(int baudRate, int dataBits, int stopBits, int parity) {
+		nanosPerByte = (1 + dataBits + stopBits + (parity == 0 ? 0 : 1)) * 1000000000L / baudRate;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean writeByte(byte b) {
+		return writeBytes(new byte[] {b});
+	}
+
+	@Override
+	public synchronized boolean writeBytes(byte[] data) {
+		long now = System.nanoTime();
+		if (verbose) {
+			System.out.println("Sending: " + formatBytes(data));
+		}
+		bytesReceived += data.length;
+
+		// The frame arrives once every byte has crossed the link
+		long arrival = now;
+		if (realTime) {
+			arrival = Math.max(now, inboundBusyUntil) + data.length * nanosPerByte;
+			inboundBusyUntil = arrival;
+		}
+
+		if (inboundCount + data.length > inbound.length) {
+			byte[] bigger = new byte[Math.max(inbound.length * 2, inboundCount + data.length)];
+			System.arraycopy(inbound, 0, bigger, 0, inboundCount);
+			inbound = bigger;
+		}
+		System.arraycopy(data, 0, inbound, inboundCount, data.length);
+		inboundCount += data.length;
+		parseInbound(arrival);
+		notifyAll();
+		return true;
+	}
+
+	@Override
+	public synchronized int getInputBufferBytesCount() {
+		long now = System.nanoTime();
+		pumpStream(now);
+		return readyCount(now);
+	}
+
+	@Override
+	public synchronized byte[] readBytes() {
+		int n = getInputBufferBytesCount();
+		if (n == 0) {
+			return null;
+		}
+		byte[] data = new byte[n];
+		take(data, 0, n);
+		return data;
+	}
+
+	@Override
+	public synchronized byte[] readBytes(int byteCount) {
+		try {
+			return readBytes(byteCount, 0);
+		} catch (SerialPortTimeoutException e) {
+			// Not reached: no timeout
+			return EMPTY;
+		}
+	}
+
+	/*
+	 * Blocks until byteCount bytes are readable. A timeout of zero waits
+	 * forever.
+	 */
+	@Override
+	public synchronized byte[] readBytes(int byteCount, int timeout) throws SerialPortTimeoutException {
+		if (!await(byteCount, timeout)) {
+			return EMPTY;
+		}
+		byte[] data = new byte[byteCount];
+		take(data, 0, byteCount);
+		if (verbose) {
+			System.out.println("Receiving: " + formatBytes(data));
+		}
+		return data;
+	}
+
+	/*
+	 * Waits until byteCount bytes are readable. Returns false if the thread
+	 * is interrupted first.
+	 */
+	private boolean await(int byteCount, int timeout) throws SerialPortTimeoutException {
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		while (true) {
+			long now = System.nanoTime();
+			pumpStream(now);
+			if (readyCount(now) >= byteCount) {
+				return true;
+			}
+			if (timeout > 0 && now >= deadline) {
+				throw new SerialPortTimeoutException(getPortName(), "readBytes()", timeout);
+			}
+
+			// Sleep until the next byte (or stream frame) is due, or until
+			// something is written
+			long wake = timeout > 0 ? deadline : Long.MAX_VALUE;
+			if (outboundCount > readyCount(now)) {
+				wake = Math.min(wake, outboundReady[(outboundHead + readyCount(now)) % outbound.length]);
+			}
+			if (streamingPeriodMillis > 0) {
+				wake = Math.min(wake, nextStreamFrame);
+			}
+			long waitNanos = wake == Long.MAX_VALUE ? 0 : Math.max(1, wake - now);
+			try {
+				wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean purgePort(int flags) {
+		outboundHead = 0;
+		outboundCount = 0;
+		inboundCount = 0;
+		return true;
+	}
+
+	// ---- Protocol ----
+
+	/*
+	 * Handle every complete frame at the front of the inbound buffer. A
+	 * frame that cannot be parsed is dropped up to the next END signal.
+	 */
+	private void parseInbound(long arrival) {
+		int pos = 0;
+		while (pos < inboundCount) {
+			int consumed;
+			switch (inbound[pos]) {
+			case MapleIO.INIT_SIGNAL:
+				consumed = parseInit(pos);
+				break;
+			case MapleIO.SET_SIGNAL:
+				consumed = parseSet(pos, arrival);
+				break;
+			case MapleIO.GET_SIGNAL:
+				consumed = 1;
+				framesReceived++;
+				sendSensorFrame(arrival);
+				break;
+			case MapleIO.STREAM_SIGNAL:
+				consumed = parseStream(pos, arrival);
+				break;
+			default:
+				consumed = skipToEnd(pos);
+				break;
+			}
+			if (consumed == 0) {
+				break;
+			}
+			pos += consumed;
+		}
+		System.arraycopy(inbound, pos, inbound, 0, inboundCount - pos);
+		inboundCount -= pos;
+	}
+
+	private int parseInit(int start) {
+		int pos = start + 1;
+		if (pos >= inboundCount) {
+			return 0;
+		}
+		int count = inbound[pos++] & 0xff;
+		List<Device> parsed = new ArrayList<Device>();
+		for (int i = 0; i < count; i++) {
+			if (pos >= inboundCount) {
+				return 0;
+			}
+			byte code = inbound[pos++];
+			int size = initializationSize(code);
+			if (size < 0) {
+				System.err.println("Emulated Maple: unknown device code '" + (char) code + "'");
+				return skipToEnd(start);
+			}
+			if (pos + size > inboundCount) {
+				return 0;
+			}
+			byte[] init = new byte[size];
+			System.arraycopy(inbound, pos, init, 0, size);
+			pos += size;
+			parsed.add(new Device(code, init));
+		}
+		if (pos >= inboundCount) {
+			return 0;
+		}
+		if (inbound[pos] != MapleIO.END_SIGNAL) {
+			System.err.println("Emulated Maple: INIT frame not terminated with END symbol");
+			return skipToEnd(start);
+		}
+		devices.clear();
+		devices.addAll(parsed);
+		streamingPeriodMillis = 0;
+		framesReceived++;
+		return pos + 1 - start;
+	}
+
+	private int parseSet(int start, long arrival) {
+		int pos = start + 1;
+		while (true) {
+			if (pos >= inboundCount) {
+				return 0;
+			}
+			if (inbound[pos] == MapleIO.END_SIGNAL) {
+				break;
+			}
+			int index = inbound[pos] & 0xff;
+			if (index >= devices.size() || devices.get(index).commandSize == 0) {
+				System.err.println("Emulated Maple: SET for invalid device index " + index);
+				return skipToEnd(start);
+			}
+			int size = devices.get(index).commandSize;
+			if (pos + 1 + size > inboundCount) {
+				return 0;
+			}
+			pos += 1 + size;
+		}
+
+		// Only apply the commands once the whole frame is known to be valid
+		pos = start + 1;
+		while (inbound[pos] != MapleIO.END_SIGNAL) {
+			Device device = devices.get(inbound[pos] & 0xff);
+			int command = decode(inbound, pos + 1, device.commandSize);
+			device.command = device.code == 'C' ? command : command & 0xffff;
+			pos += 1 + device.commandSize;
+		}
+		framesReceived++;
+		if (lastSensorFrameDelivered > 0) {
+			commandLatencyNanos = arrival - lastSensorFrameDelivered;
+			commandLatencyTotalNanos += commandLatencyNanos;
+			commandLatencySamples++;
+			lastSensorFrameDelivered = 0;
+		}
+		return pos + 1 - start;
+	}
+
+	private int parseStream(int start, long arrival) {
+		if (start + 3 >= inboundCount) {
+			return 0;
+		}
+		if (inbound[start + 3] != MapleIO.END_SIGNAL) {
+			return skipToEnd(start);
+		}
+		streamingPeriodMillis = decode(inbound, start + 1, 2) & 0xffff;
+		nextStreamFrame = arrival;
+		framesReceived++;
+		return 4;
+	}
+
+	private int skipToEnd(int start) {
+		for (int pos = start; pos < inboundCount; pos++) {
+			if (inbound[pos] == MapleIO.END_SIGNAL) {
+				return pos + 1 - start;
+			}
+		}
+		// Nothing to resynchronize on yet; drop it all
+		return inboundCount - start;
+	}
+
+	private void pumpStream(long now) {
+		while (streamingPeriodMillis > 0 && nextStreamFrame <= now) {
+			sendSensorFrame(nextStreamFrame);
+			nextStreamFrame += streamingPeriodMillis * 1000000L;
+		}
+	}
+
+	private void sendSensorFrame(long time) {
+		if (model != null) {
+			model.update(this, time);
+		} else {
+			simulateIdleReadings();
+		}
+		int size = 2;
+		for (Device device : devices) {
+			size += device.readingSize;
+		}
+		byte[] frame = new byte[size];
+		int pos = 0;
+		frame[pos++] = MapleIO.RESPONSE_SIGNAL;
+		for (Device device : devices) {
+			encode(device.reading, frame, pos, device.readingSize);
+			pos += device.readingSize;
+			if (device.code == 'N') {
+				device.reading = 0;
+			}
+		}
+		frame[pos] = MapleIO.END_SIGNAL;
+		if (framesToCorrupt > 0) {
+			frame[pos] = 0;
+			framesToCorrupt--;
+		}
+		enqueue(frame, time);
+		sensorFramesSent++;
+	}
+
+	/*
+	 * Readings for a robot standing still with nothing close by: a little
+	 * gyro noise, mid-range distances, no encoder ticks.
+	 */
+	private void simulateIdleReadings() {
+		for (Device device : devices) {
+			switch (device.code) {
+			case 'Y':
+				device.reading = (int) Math.round(random.nextGaussian() * 2);
+				break;
+			case 'A':
+				device.reading = 1500 + (int) Math.round(random.nextGaussian() * 10);
+				break;
+			case 'U':
+				device.reading = 5000 + (int) Math.round(random.nextGaussian() * 20);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private void enqueue(byte[] frame, long start) {
+		if (outboundCount + frame.length > outbound.length) {
+			int capacity = Math.max(outbound.length * 2, outboundCount + frame.length);
+			byte[] bytes = new byte[capacity];
+			long[] ready = new long[capacity];
+			for (int i = 0; i < outboundCount; i++) {
+				bytes[i] = outbound[(outboundHead + i) % outbound.length];
+				ready[i] = outboundReady[(outboundHead + i) % outbound.length];
+			}
+			outbound = bytes;
+			outboundReady = ready;
+			outboundHead = 0;
+		}
+		long t = realTime ? Math.max(start, outboundBusyUntil) : start;
+		for (int i = 0; i < frame.length; i++) {
+			if (realTime) {
+				t += nanosPerByte;
+			}
+			int slot = (outboundHead + outboundCount) % outbound.length;
+			outbound[slot] = frame[i];
+			outboundReady[slot] = t;
+			outboundCount++;
+		}
+		outboundBusyUntil = t;
+		lastSensorFrameDelivered = t;
+		notifyAll();
+	}
+
+	private int readyCount(long now) {
+		int n = 0;
+		while (n < outboundCount && outboundReady[(outboundHead + n) % outbound.length] <= now) {
+			n++;
+		}
+		return n;
+	}
+
+	private void take(byte[] data, int offset, int n) {
+		for (int i = 0; i < n; i++) {
+			data[offset + i] = outbound[(outboundHead + i) % outbound.length];
+		}
+		outboundHead = (outboundHead + n) % outbound.length;
+		outboundCount -= n;
+		bytesSent += n;
+	}
+
+	// ---- Device tables (must match the firmware and the devices package) ----
+
+	private static int initializationSize(byte code) {
+		switch (code) {
+		case 'V':
+			return 9;
+		case 'C':
+		case 'Y':
+		case 'N':
+		case 'U':
+			return 2;
+		case 'A':
+		case 'D':
+		case 'd':
+		case 'P':
+			return 1;
+		default:
+			return -1;
+		}
+	}
+
+	private static int commandSize(byte code) {
+		switch (code) {
+		case 'C':
+		case 'V':
+		case 'P':
+			return 2;
+		case 'd':
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private static int readingSize(byte code) {
+		switch (code) {
+		case 'Y':
+		case 'N':
+		case 'A':
+		case 'U':
+			return 2;
+		case 'D':
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private static int decode(byte[] data, int pos, int size) {
+		if (size == 1) {
+			return data[pos];
+		}
+		return (short) (((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff));
+	}
+
+	private static void encode(int value, byte[] data, int pos, int size) {
+		if (size == 1) {
+			data[pos] = (byte) value;
+		} else if (size == 2) {
+			data[pos] = (byte) ((value >> 8) & 0xff);
+			data[pos + 1] = (byte) (value & 0xff);
+		}
+	}
+
+	public static String formatByte(byte b) {
+		String hex = Integer.toHexString(b);
+		if (hex.length() > 2)
+			hex = hex.substring(hex.length() - 2);
+		if (hex.length() < 2)
+			hex = "0" + hex;
+		return "0x" + hex;
+	}
+
+	public static String formatBytes(byte[] data) {
+		StringBuilder str = new StringBuilder();
+		if (data != null) {
+			for (byte b : data) {
+				str.append(formatByte(b)).append(' ');
+			}
+		}
+		return str.toString();
+	}
+}
@@ -1,9 +1,11 @@
 package comm;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 import jssc.SerialPort;
 import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
 
 public class MapleIO {
 	
@@ -11,14 +13,23 @@ public class MapleIO {
 	public static final byte SET_SIGNAL = (byte) 'S';
 	public static final byte GET_SIGNAL = (byte) 'G';
 	public static final byte RESPONSE_SIGNAL = (byte) 'R';
+	public static final byte STREAM_SIGNAL = (byte) 'T';
 	public static final byte END_SIGNAL = (byte) 0xff;
 	
+	// How long to wait for a sensor data frame before asking for it again
+	static final int RESPONSE_TIMEOUT_MILLIS = 100;
+	
+	private static final byte[] GET_PACKET = new byte[] {GET_SIGNAL};
+	
 	public enum SerialPortType {
 		LINUX, SIMULATION, WINDOWS
 	}
 	
 	private SerialPort serialPort;
 	private int expectedInboundMessageSize;
+	private FrameDecoder decoder;
+	private ByteBuffer outboundFrame;
+	private byte[][] outboundPackets;
 	
 	/*
 	 * Connects to your device based on the input mode proposed during object
@@ -40,13 +51,26 @@ public class MapleIO {
 		// Simulation mode
 		else if (portType == SerialPortType.SIMULATION) {
 			System.err.println("RUNNING IN SIMULATION MODE.");
-			serialPort = new SimulatedPort();
+			connect(new MapleEmulator());
 			return;
 		}
 		
 		connect(port);
 	}
 	
+	/*
+	 * Uses an already constructed port, e.g. a MapleEmulator.
+	 */
+	public void connect(SerialPort port) {
+		serialPort = port;
+		try {
+			serialPort.openPort();
+			serialPort.setParams(115200, 8, 1, 0);
+		} catch (SerialPortException ex) {
+			System.err.println(ex);
+		}
+	}
+	
 	void connect(String port) {
 		
 		Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -95,9 +119,23 @@ public class MapleIO {
 	
 	public void setExpectedInboundMessageSize(int dataSize) {
 		expectedInboundMessageSize = dataSize + 2;
+		decoder = new FrameDecoder(dataSize);
 	}
 	
-	public void sendInitMessage(ByteArrayOutputStream message) {
+	/*
+	 * Counters for inbound frames: decoded, corrupt (dropped because of a bad
+	 * END signal), dropped (lost to buffer overflow), and stray bytes skipped.
+	 */
+	public FrameDecoder getDecoder() {
+		return decoder;
+	}
+	
+	/*
+	 * The send methods are synchronized so that frames written from different
+	 * threads (e.g. commands and pipelined sensor requests) never interleave.
+	 * Reads do not take this lock.
+	 */
+	public synchronized void sendInitMessage(ByteArrayOutputStream message) {
 		try {
 			// we have observed strange behavior when several calls to writeBytes()
 			// are made in immediate succession, so we pack the entire message
@@ -110,53 +148,175 @@ public class MapleIO {
 		}
 	}
 	
-	public void sendCommand(ByteArrayOutputStream message) {
+	/*
+	 * Preallocates the outbound frame so that building and sending commands
+	 * does not allocate once the device list is known.
+	 */
+	public void setMaxOutboundMessageSize(int dataSize) {
+		outboundFrame = ByteBuffer.allocate(dataSize + 2);
+		outboundPackets = new byte[dataSize + 3][];
+		outboundPackets[dataSize + 2] = outboundFrame.array();
+	}
+	
+	/*
+	 * Resets the shared outbound frame and returns it, positioned after the
+	 * SET signal, ready for the command data.
+	 */
+	public ByteBuffer beginCommand() {
+		outboundFrame.clear();
+		outboundFrame.put(SET_SIGNAL);
+		return outboundFrame;
+	}
+	
+	/*
+	 * Terminates and sends the frame returned by beginCommand(). Returns
+	 * false if the frame could not be written.
+	 */
+	public synchronized boolean sendCommand() {
 		try {
 			// see comment in sendInitMessage()
-			byte[] packet = buildPacket(SET_SIGNAL, message.toByteArray(), END_SIGNAL);
+			outboundFrame.put(END_SIGNAL);
+			byte[] packet = outboundPacket(outboundFrame.position());
 			//System.out.println("SET: " + Arrays.toString(packet));
-			serialPort.writeBytes(packet);
+			return serialPort.writeBytes(packet);
 		} catch (SerialPortException e) {
 			System.err.println("Command message failed to send. [" + e + "]");
+			return false;
 		}
 	}
 	
-	public void sendSensorDataRequest() {
+	/*
+	 * Ask the Maple to send a sensor data frame every periodMillis without
+	 * waiting for a GET. A period of zero stops streaming.
+	 */
+	public synchronized void sendStreamRequest(int periodMillis) {
 		try {
 			// see comment in sendInitMessage()
-			byte[] packet = new byte[] {GET_SIGNAL};
-			//System.out.println("GET: " + Arrays.toString(packet));
+			byte[] packet = new byte[] {STREAM_SIGNAL, (byte) ((periodMillis >> 8) & 0xff),
+					(byte) (periodMillis & 0xff), END_SIGNAL};
+			//System.out.println("STR: " + Arrays.toString(packet));
 			serialPort.writeBytes(packet);
+		} catch (SerialPortException e) {
+			System.err.println("Stream request failed to send. [" + e + "]");
+		}
+	}
+	
+	public synchronized void sendSensorDataRequest() {
+		try {
+			//System.out.println("GET: " + Arrays.toString(GET_PACKET));
+			serialPort.writeBytes(GET_PACKET);
 		} catch (SerialPortException e) {
 			System.err.println("Sensor data request failed to send. [" + e + "]");
 		}
 	}
 	
+	/*
+	 * Reads the response to a sensor data request that has already been
+	 * sent. If that frame is corrupt or does not arrive in time, the request
+	 * is sent again.
+	 */
 	public byte[] getMostRecentMessage() {
+		byte[] data = new byte[expectedInboundMessageSize - 2];
+		while (!readResponse(data, RESPONSE_TIMEOUT_MILLIS)) {
+			sendSensorDataRequest();
+		}
+		return data;
+	}
+	
+	/*
+	 * Whether any input has arrived that has not been read yet. Does not
+	 * wait.
+	 */
+	public boolean hasInput() {
+		try {
+			return decoder.buffered() > 0 || serialPort.getInputBufferBytesCount() > 0;
+		} catch (SerialPortException e) {
+			System.err.println(e);
+			return false;
+		}
+	}
+	
+	/*
+	 * Blocks until the RESPONSE signal that starts a sensor data frame has
+	 * been received, or until timeoutMillis pass without any input (zero
+	 * waits forever). Returns false on timeout.
+	 */
+	public boolean waitForResponseHeader(int timeoutMillis) {
+		while (!decoder.seekHeader()) {
+			if (!fill(timeoutMillis)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Blocks until a complete sensor data frame has been received and copies
+	 * its data into data. Returns false if the frame was corrupt and has been
+	 * dropped, or if timeoutMillis pass without any input (zero waits
+	 * forever); the caller should then wait for the next header.
+	 */
+	public boolean readResponse(byte[] data, int timeoutMillis) {
 		while (true) {
-			
-			byte[] data;
-			
-			try {
-				byte firstByte = (byte) 0;
-				while (firstByte != RESPONSE_SIGNAL) {
-					firstByte = serialPort.readBytes(1)[0];
+			switch (decoder.decode(data)) {
+			case FRAME:
+				return true;
+			case CORRUPT:
+				System.err.println("Received packet not terminated with END symbol");
+				return false;
+			case NEED_MORE:
+				if (!fill(timeoutMillis)) {
+					return false;
 				}
-				data = serialPort.readBytes(expectedInboundMessageSize - 2);
-				byte lastByte = serialPort.readBytes(1)[0];
-				if (lastByte != END_SIGNAL) {
-					System.err.println("Received packet not terminated with END symbol");
-					System.exit(1);
-				}
-			} catch (SerialPortException e) {
-				System.err.println(e);
-				continue;
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * Moves whatever input is available into the decoder with a single read,
+	 * blocking for the first byte if nothing is available yet. jssc has no
+	 * way to read into a buffer of ours, so each read hands back a new
+	 * array, fed to the decoder as is. Every port, emulated or not, is read
+	 * the same way. Returns false if nothing could be read.
+	 */
+	private boolean fill(int timeoutMillis) {
+		try {
+			int available = Math.min(serialPort.getInputBufferBytesCount(), decoder.free());
+			byte[] chunk;
+			if (available > 0) {
+				chunk = serialPort.readBytes(available);
+			} else if (timeoutMillis > 0) {
+				chunk = serialPort.readBytes(1, timeoutMillis);
+			} else {
+				chunk = serialPort.readBytes(1);
 			}
-			
-			return data;
+			decoder.feed(chunk, 0, chunk.length);
+			return chunk.length > 0;
+		} catch (SerialPortTimeoutException e) {
+			return false;
+		} catch (SerialPortException e) {
+			System.err.println(e);
+			return false;
 		}
 	}
 	
+	/*
+	 * SerialPort.writeBytes() sends a whole array, so keep one array per
+	 * packet length. Each is allocated the first time that length is sent.
+	 */
+	private byte[] outboundPacket(int len) {
+		byte[] packet = outboundPackets[len];
+		if (packet == null) {
+			packet = new byte[len];
+			outboundPackets[len] = packet;
+		}
+		if (packet != outboundFrame.array()) {
+			System.arraycopy(outboundFrame.array(), 0, packet, 0, len);
+		}
+		return packet;
+	}
+	
 	private static byte[] buildPacket(byte first, byte[] message, byte last) {
 		int len = message.length;
 		byte[] packet = new byte[len + 2];
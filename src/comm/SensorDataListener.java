@@ -0,0 +1,6 @@
+package comm;
+
+public interface SensorDataListener {
+	// Called on the sensor reader thread after every device has consumed a new frame
+	public void sensorDataUpdated(SensorSnapshot snapshot);
+}
@@ -0,0 +1,48 @@
+package comm;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import devices.MapleDevice;
+
+/*
+ * An immutable copy of one sensor data frame from the Maple. Every sensor's
+ * reading in a snapshot comes from the same frame, so readers get a
+ * consistent view without locking. Sensors decode their own values from a
+ * snapshot (e.g. Gyroscope.getAngularSpeed(SensorSnapshot)).
+ */
+public class SensorSnapshot {
+	private final long sequence;
+	private final long timestamp;
+	private final byte[] data;
+	private final Map<MapleDevice, Integer> offsets;
+
+	SensorSnapshot(long sequence, long timestamp, byte[] data, Map<MapleDevice, Integer> offsets) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.data = data;
+		this.offsets = offsets;
+	}
+
+	// Increases by one for every frame processed
+	public long getSequence() {
+		return sequence;
+	}
+
+	// System.nanoTime() when the frame was received
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/*
+	 * Returns a read-only view of the bytes the Maple sent for the given
+	 * device, positioned at the start of that device's data.
+	 */
+	public ByteBuffer getData(MapleDevice device) {
+		Integer offset = offsets.get(device);
+		if (offset == null) {
+			throw new IllegalArgumentException("Device is not registered with this MapleComm");
+		}
+		return ByteBuffer.wrap(data, offset, device.expectedNumBytesFromMaple()).asReadOnlyBuffer();
+	}
+}
@@ -10,8 +10,11 @@ public abstract class MapleDevice {
 	// Return the list of bytes the Maple is expecting to setup this device
 	public abstract byte[] getInitializationBytes();
 
-	// Generates data for output "SET" stream (from Java to Maple)
-	abstract public byte[] generateCommandToMaple();
+	// Writes data for output "SET" stream (from Java to Maple) into buff
+	abstract public void writeCommandToMaple(ByteBuffer buff);
+
+	// Size of write operation
+	abstract public int commandSizeToMaple();
 
 	// Consumes and stores local byte data from "GET" stream (from Maple to Java)
 	abstract public void consumeMessageFromMaple(ByteBuffer buff);
@@ -1,11 +1,16 @@
 package devices;
 
+import java.nio.ByteBuffer;
+
 
 public abstract class Sensor extends MapleDevice {
 	
 	@Override
-	public byte[] generateCommandToMaple() {
-		return new byte[] { };
+	public void writeCommandToMaple(ByteBuffer buff) { }
+
+	@Override
+	public int commandSizeToMaple() {
+		return 0;
 	}
 
 }
@@ -1,5 +1,7 @@
 package devices.actuators;
 
+import java.nio.ByteBuffer;
+
 import devices.Actuator;
 
 
@@ -28,9 +30,14 @@ public class Cytron extends Actuator {
 	}
 
 	@Override
-	public byte[] generateCommandToMaple() {
-		return new byte[] { (byte) ((speed >> 8) & 0xff),
-				(byte) (speed & 0xff) };
+	public void writeCommandToMaple(ByteBuffer buff) {
+		buff.put((byte) ((speed >> 8) & 0xff));
+		buff.put((byte) (speed & 0xff));
+	}
+
+	@Override
+	public int commandSizeToMaple() {
+		return 2;
 	}
 
 	public void setSpeed(double speed) {
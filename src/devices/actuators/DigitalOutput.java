@@ -1,5 +1,7 @@
 package devices.actuators;
 
+import java.nio.ByteBuffer;
+
 import devices.Actuator;
 
 public class DigitalOutput extends Actuator {
@@ -24,8 +26,13 @@ public class DigitalOutput extends Actuator {
 	}
 
 	@Override
-	public byte[] generateCommandToMaple() {
-		return new byte[] {value};
+	public void writeCommandToMaple(ByteBuffer buff) {
+		buff.put(value);
+	}
+
+	@Override
+	public int commandSizeToMaple() {
+		return 1;
 	}
 	
 	public void setValue(boolean value) {
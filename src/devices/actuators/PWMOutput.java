@@ -1,5 +1,7 @@
 package devices.actuators;
 
+import java.nio.ByteBuffer;
+
 import devices.Actuator;
 
 public class PWMOutput extends Actuator {
@@ -24,9 +26,14 @@ public class PWMOutput extends Actuator {
 	}
 
 	@Override
-	public byte[] generateCommandToMaple() {
-		return new byte[] { (byte) ((value >> 8) & 0xff),
-				(byte) (value & 0xff) };
+	public void writeCommandToMaple(ByteBuffer buff) {
+		buff.put((byte) ((value >> 8) & 0xff));
+		buff.put((byte) (value & 0xff));
+	}
+
+	@Override
+	public int commandSizeToMaple() {
+		return 2;
 	}
 	
 	public void setValue(double value) {
@@ -1,5 +1,7 @@
 package devices.actuators;
 
+import java.nio.ByteBuffer;
+
 import devices.Actuator;
 
 public class Servo extends Actuator {
@@ -43,9 +45,14 @@ public class Servo extends Actuator {
 	}
 
 	@Override
-	public byte[] generateCommandToMaple() {
-		byte out[] = new byte[] { (byte) ((pulseWidth >> 8) & 0xff), (byte) (pulseWidth & 0xff) };
-		return out;
+	public void writeCommandToMaple(ByteBuffer buff) {
+		buff.put((byte) ((pulseWidth >> 8) & 0xff));
+		buff.put((byte) (pulseWidth & 0xff));
+	}
+
+	@Override
+	public int commandSizeToMaple() {
+		return 2;
 	}
 	
 	// Angle is in degrees. Different devices (subclasses) have different angle ranges.
@@ -2,6 +2,7 @@ package devices.sensors;
 
 import java.nio.ByteBuffer;
 
+import comm.SensorSnapshot;
 import devices.Sensor;
 
 public class AnalogInput extends Sensor {
@@ -27,9 +28,7 @@ public class AnalogInput extends Sensor {
 
 	@Override
 	public void consumeMessageFromMaple(ByteBuffer buff) {
-		byte msb = buff.get();
-		byte lsb = buff.get();
-		value = (Math.abs(msb) * 256) + Math.abs(lsb);
+		value = decode(buff);
 	}
 
 	@Override
@@ -41,4 +40,14 @@ public class AnalogInput extends Sensor {
 		return value;
 	}
 
+	public float getValue(SensorSnapshot snapshot) {
+		return decode(snapshot.getData(this));
+	}
+
+	private static float decode(ByteBuffer buff) {
+		byte msb = buff.get();
+		byte lsb = buff.get();
+		return (Math.abs(msb) * 256) + Math.abs(lsb);
+	}
+
 }
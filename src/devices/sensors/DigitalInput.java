@@ -2,6 +2,7 @@ package devices.sensors;
 
 import java.nio.ByteBuffer;
 
+import comm.SensorSnapshot;
 import devices.Sensor;
 
 public class DigitalInput extends Sensor {
@@ -40,4 +41,8 @@ public class DigitalInput extends Sensor {
 		return val;
 	}
 
+	public boolean getValue(SensorSnapshot snapshot) {
+		return snapshot.getData(this).get() != 0;
+	}
+
 }
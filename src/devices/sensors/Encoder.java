@@ -2,6 +2,7 @@ package devices.sensors;
 
 import java.nio.ByteBuffer;
 
+import comm.SensorSnapshot;
 import devices.Sensor;
 
 public class Encoder extends Sensor {
@@ -10,6 +11,7 @@ public class Encoder extends Sensor {
 	private static final int TICKS_PER_REV = 16; // count only rising edge of pin A.
 	                                             // if count rising and falling of A and B,
 	                                             // then ticks_per_rev = 64
+	public static final double TICKS_PER_RADIAN = GEAR_REDUCTION * TICKS_PER_REV / (2.0 * Math.PI);
 	byte pinA;
 	byte pinB;
 	
@@ -47,9 +49,7 @@ public class Encoder extends Sensor {
 	@Override
 	public void consumeMessageFromMaple(ByteBuffer buff) {
 		long currentTime = System.nanoTime();
-		byte msb = buff.get();
-		byte lsb = buff.get();
-		deltaTicks = (msb * 256) + ((int) lsb & 0xff);
+		deltaTicks = decode(buff);
 		ticks += deltaTicks;
 		deltaTime = currentTime - lastUpdateTime;
 		lastUpdateTime = currentTime;
@@ -74,5 +74,16 @@ public class Encoder extends Sensor {
 	public double getAngularSpeed() {
 		return (double) (1000000000.0 * getDeltaAngularDistance() / deltaTime);
 	}
+	
+	// in radians, turned between the previous frame and the given one
+	public double getDeltaAngularDistance(SensorSnapshot snapshot) {
+		return 2.0 * Math.PI * decode(snapshot.getData(this)) / (GEAR_REDUCTION * TICKS_PER_REV);
+	}
+
+	private static int decode(ByteBuffer buff) {
+		byte msb = buff.get();
+		byte lsb = buff.get();
+		return (msb * 256) + ((int) lsb & 0xff);
+	}
 
 }
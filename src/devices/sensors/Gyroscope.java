@@ -2,10 +2,11 @@ package devices.sensors;
 
 import java.nio.ByteBuffer;
 
+import comm.SensorSnapshot;
 import devices.Sensor;
 
 public class Gyroscope extends Sensor {
-	private static final double CONVERSION_FACTOR = (Math.PI / 180) / 80;
+	public static final double CONVERSION_FACTOR = (Math.PI / 180) / 80; // radians per second per unit
 	private static final int ERROR_CODE = -32767;
 	
 	byte spiPort;
@@ -35,11 +36,9 @@ public class Gyroscope extends Sensor {
 
 	@Override
 	public void consumeMessageFromMaple(ByteBuffer buff) {
-		byte msb = buff.get();
-		byte lsb = buff.get();
-		int new_omega = (msb * 256) + ((int) lsb & 0xff);
-		if (new_omega != ERROR_CODE) {
-			omega = new_omega * CONVERSION_FACTOR;
+		double new_omega = decode(buff);
+		if (!Double.isNaN(new_omega)) {
+			omega = new_omega;
 		}
 	}
 
@@ -53,6 +52,21 @@ public class Gyroscope extends Sensor {
 		return omega;
 	}
 	
+	// in radians per second, or NaN if the gyro reported an error in this frame
+	public double getAngularSpeed(SensorSnapshot snapshot) {
+		return decode(snapshot.getData(this));
+	}
+
+	private static double decode(ByteBuffer buff) {
+		byte msb = buff.get();
+		byte lsb = buff.get();
+		int new_omega = (msb * 256) + ((int) lsb & 0xff);
+		if (new_omega == ERROR_CODE) {
+			return Double.NaN;
+		}
+		return new_omega * CONVERSION_FACTOR;
+	}
+	
 	public double getAngleChangeSinceLastUpdate() {
 		throw new UnsupportedOperationException();
 	}
@@ -1,5 +1,7 @@
 package devices.sensors;
 
+import comm.SensorSnapshot;
+
 public class Infrared extends AnalogInput {
 	
 	/*
@@ -10,6 +12,14 @@ public class Infrared extends AnalogInput {
 	}
 	
 	public double getDistance() {
+		return toDistance(value);
+	}
+
+	public double getDistance(SensorSnapshot snapshot) {
+		return toDistance(getValue(snapshot));
+	}
+
+	private static double toDistance(float value) {
 		// 6 inches = 2900
 		// 8 inches = 2680
 		// 10 inches = 2350
@@ -2,6 +2,7 @@ package devices.sensors;
 
 import java.nio.ByteBuffer;
 
+import comm.SensorSnapshot;
 import devices.Sensor;
 
 public class Ultrasonic extends Sensor {
@@ -34,10 +35,7 @@ public class Ultrasonic extends Sensor {
 
 	@Override
 	public void consumeMessageFromMaple(ByteBuffer buff) {
-		byte msb = buff.get();
-		byte lsb = buff.get();
-		distance = ((((int) msb & 0xff) * 256) + ((int) lsb & 0xff)) * CONVERSION_FACTOR;
-		//distance = ((((int) msb & 0xff) * 256) + ((int) lsb & 0xff));
+		distance = decode(buff);
 	}
 
 	@Override
@@ -50,4 +48,16 @@ public class Ultrasonic extends Sensor {
 		return distance;
 	}
 
+	// in meters
+	public double getDistance(SensorSnapshot snapshot) {
+		return decode(snapshot.getData(this));
+	}
+
+	private static double decode(ByteBuffer buff) {
+		byte msb = buff.get();
+		byte lsb = buff.get();
+		return ((((int) msb & 0xff) * 256) + ((int) lsb & 0xff)) * CONVERSION_FACTOR;
+		//return ((((int) msb & 0xff) * 256) + ((int) lsb & 0xff));
+	}
+
 }
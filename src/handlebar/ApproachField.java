@@ -0,0 +1,202 @@
+package handlebar;
+
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+
+import comm.BotClientMap.Point;
+import comm.BotClientMap.Wall;
+import comm.BotClientMap.Wall.WallType;
+
+/**
+ * How to get from anywhere on a Lattice to the nearest wall of one type: the
+ * distance from every point to such a wall, along the lattice to an approach
+ * point and from there straight to the wall, and the step to take from each
+ * point on the way. Approach points are the open points within
+ * APPROACH_DISTANCE of a wall of the type from which the robot can drive
+ * straight in to it (or all of those points, if it cannot from any).
+ * Both come from one Dijkstra search run backwards from all the approach
+ * points at once, each starting at its own distance from the wall, so once
+ * the field is made, the way to the nearest silo or reactor from any point
+ * is read off by following the steps, with no search at all. The steps
+ * carry on through the approach band to the point in it nearest the wall,
+ * and stop() then takes the robot the rest of the way in.
+ *
+ * Made by the lattice the first time it is asked for a type of wall, and
+ * thrown away with it when the map changes.
+ */
+class ApproachField {
+	// Further than a lattice step, so that every wall longer than a step has approach points
+	// beside it even where the points right next to it are off limits.
+	final static double APPROACH_DISTANCE = 3 * Lattice.STEP / 2;
+	// stop() leaves this much more room to the wall than line of sight needs, so that
+	// the last leg still passes lineOfSight() after rounding.
+	private final static double STOP_MARGIN = 0.01;
+
+	final WallType type;
+	private final Lattice lattice;
+	private final Wall[] walls; // Just the walls of this type.
+	private final double[] distances;
+	private final int[] next; // -1 for the points routes end at and points that cannot reach one.
+
+	ApproachField(Lattice lattice, Wall[] walls, WallType type) {
+		this.type = type;
+		this.lattice = lattice;
+		int count = 0;
+		Wall[] ofType = new Wall[walls.length];
+		for (Wall w : walls) {
+			if (w.type == type) {
+				ofType[count++] = w;
+			}
+		}
+		this.walls = Arrays.copyOf(ofType, count);
+		this.next = new int[lattice.size()];
+		int[] band = approachPoints();
+		int[] sources = new int[band.length];
+		count = 0;
+		for (int node : band) {
+			if (wayIn(node) != null) {
+				sources[count++] = node;
+			}
+		}
+		sources = (count > 0) ? Arrays.copyOf(sources, count) : band;
+		double[] seeds = new double[sources.length];
+		for (int i = 0; i < sources.length; i++) {
+			seeds[i] = wallDistance(lattice.x(sources[i]), lattice.y(sources[i]));
+		}
+		this.distances = lattice.distancesFrom(sources, seeds, next);
+	}
+
+	/*
+	 * The open lattice points within APPROACH_DISTANCE of a wall of this
+	 * type, looking only around each wall's bounding box.
+	 */
+	private int[] approachPoints() {
+		boolean[] approach = new boolean[lattice.size()];
+		int count = 0;
+		for (Wall w : walls) {
+			int i0 = Math.max(0, (int) Math.ceil((Math.min(w.start.x, w.end.x) - APPROACH_DISTANCE - lattice.x0) / Lattice.STEP));
+			int i1 = Math.min(lattice.width - 1, (int) Math.floor((Math.max(w.start.x, w.end.x) + APPROACH_DISTANCE - lattice.x0) / Lattice.STEP));
+			int j0 = Math.max(0, (int) Math.ceil((Math.min(w.start.y, w.end.y) - APPROACH_DISTANCE - lattice.y0) / Lattice.STEP));
+			int j1 = Math.min(lattice.height - 1, (int) Math.floor((Math.max(w.start.y, w.end.y) + APPROACH_DISTANCE - lattice.y0) / Lattice.STEP));
+			for (int i = i0; i <= i1; i++) {
+				for (int j = j0; j <= j1; j++) {
+					int node = i * lattice.height + j;
+					if (!approach[node] && lattice.isOpen(node)
+							&& Line2D.ptSegDist(w.start.x, w.start.y, w.end.x, w.end.y, lattice.x(node), lattice.y(node)) <= APPROACH_DISTANCE) {
+						approach[node] = true;
+						count++;
+					}
+				}
+			}
+		}
+		int[] points = new int[count];
+		count = 0;
+		for (int node = 0; node < approach.length; node++) {
+			if (approach[node]) {
+				points[count++] = node;
+			}
+		}
+		return points;
+	}
+
+	/**
+	 * Whether a wall of this type can be reached from the point.
+	 */
+	boolean reaches(int node) {
+		return distances[node] != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * The distance from the point to the nearest wall of this type, along
+	 * the lattice to an approach point and then straight to the wall, or
+	 * infinity if there is no approach point it can reach.
+	 */
+	double distance(int node) {
+		return distances[node];
+	}
+
+	/**
+	 * The lattice path from the point to the approach point it is nearest
+	 * the wall through, in time proportional to its length. The point must
+	 * reach one.
+	 */
+	int[] route(int node) {
+		int[] path = new int[16];
+		int length = 0;
+		path[length++] = node;
+		while (next[node] >= 0) {
+			node = next[node];
+			if (length == path.length) {
+				path = Arrays.copyOf(path, 2 * length);
+			}
+			path[length++] = node;
+		}
+		return Arrays.copyOf(path, length);
+	}
+
+	/**
+	 * Where to stop beside the wall at the end of a route: straight on from
+	 * the route's last point towards the nearest wall of this type, as close
+	 * as lineOfSight() allows, or the point itself if the way in is not
+	 * clear.
+	 */
+	Point stop(int node) {
+		Point stop = wayIn(node);
+		return (stop != null) ? stop : new Point(lattice.x(node), lattice.y(node));
+	}
+
+	/**
+	 * Where the robot gets to driving straight from the point towards the
+	 * nearest wall of this type until it is as close as lineOfSight()
+	 * allows: the point itself if it is that close already, or null if the
+	 * way in is not clear.
+	 */
+	private Point wayIn(int node) {
+		double x = lattice.x(node);
+		double y = lattice.y(node);
+		Point wall = closestWallPoint(x, y);
+		double d = Math.sqrt((x - wall.x) * (x - wall.x) + (y - wall.y) * (y - wall.y));
+		double stop = lattice.lineOfSightClearance() + STOP_MARGIN;
+		if (d <= stop) {
+			return new Point(x, y);
+		}
+		double sx = wall.x + (x - wall.x) * stop / d;
+		double sy = wall.y + (y - wall.y) * stop / d;
+		return lattice.lineOfSight(x, y, sx, sy) ? new Point(sx, sy) : null;
+	}
+
+	/**
+	 * The distance from (x, y) to the nearest wall of this type.
+	 */
+	private double wallDistance(double x, double y) {
+		double best = Double.POSITIVE_INFINITY;
+		for (Wall w : walls) {
+			best = Math.min(best, Line2D.ptSegDist(w.start.x, w.start.y, w.end.x, w.end.y, x, y));
+		}
+		return best;
+	}
+
+	/**
+	 * The closest point to (x, y) on any wall of this type, or null if the
+	 * map has none.
+	 */
+	Point closestWallPoint(double x, double y) {
+		Point closest = null;
+		double best = Double.POSITIVE_INFINITY;
+		for (Wall w : walls) {
+			double dx = w.end.x - w.start.x;
+			double dy = w.end.y - w.start.y;
+			double lengthSquared = dx * dx + dy * dy;
+			double t = (lengthSquared > 0) ? ((x - w.start.x) * dx + (y - w.start.y) * dy) / lengthSquared : 0;
+			t = Math.max(0, Math.min(1, t));
+			double px = w.start.x + t * dx;
+			double py = w.start.y + t * dy;
+			double d = (px - x) * (px - x) + (py - y) * (py - y);
+			if (d < best) {
+				best = d;
+				closest = new Point(px, py);
+			}
+		}
+		return closest;
+	}
+}
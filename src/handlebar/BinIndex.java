@@ -0,0 +1,74 @@
+package handlebar;
+
+/**
+ * A set of grid bins, for grouping particles by where they are. Bins are
+ * identified by up to three integer coordinates and numbered 0, 1, 2...
+ * in the order they are added, so callers can keep per-bin data in plain
+ * arrays. Clearing is O(1), so one index can be reused on every resample
+ * without allocating.
+ */
+class BinIndex {
+	private final static long COORDINATE_MASK = 0x1fffff; // 21 bits per coordinate.
+
+	private final long[] slotKeys;
+	private final int[] slotStamps;
+	private final int[] slotBins;
+	private final int mask;
+	private int stamp = 1;
+	private int size = 0;
+
+	/**
+	 * An index that can hold up to maxBins bins.
+	 */
+	BinIndex(int maxBins) {
+		int capacity = Integer.highestOneBit(Math.max(2, 2 * maxBins - 1)) << 1;
+		this.slotKeys = new long[capacity];
+		this.slotStamps = new int[capacity];
+		this.slotBins = new int[capacity];
+		this.mask = capacity - 1;
+	}
+
+	static long key(int a, int b, int c) {
+		return (a & COORDINATE_MASK) << 42 | (b & COORDINATE_MASK) << 21 | (c & COORDINATE_MASK);
+	}
+
+	void clear() {
+		stamp++;
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * The number of the bin with the given key, adding it if it is not
+	 * in the index yet. A new bin is numbered size() - 1 afterwards.
+	 */
+	int add(long key) {
+		int slot = find(key);
+		if (slotStamps[slot] != stamp) {
+			slotStamps[slot] = stamp;
+			slotKeys[slot] = key;
+			slotBins[slot] = size++;
+		}
+		return slotBins[slot];
+	}
+
+	/**
+	 * The number of the bin with the given key, or -1 if it is not in the
+	 * index.
+	 */
+	int get(long key) {
+		int slot = find(key);
+		return (slotStamps[slot] == stamp) ? slotBins[slot] : -1;
+	}
+
+	private int find(long key) {
+		int slot = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+		while (slotStamps[slot] == stamp && slotKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+}
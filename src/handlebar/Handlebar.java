@@ -76,6 +76,9 @@ public class Handlebar {
 				while (!moved) {
 					try {
 						Point p = map.randomPoint();
+						if (!PathFinder.isReachable(map, nav.pose, p)) {
+							continue;
+						}
 						System.out.println("Moving to " + p);
 						nav.moveToPoint(p);
 						moved = true;
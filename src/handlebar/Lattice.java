@@ -0,0 +1,424 @@
+package handlebar;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Wall;
+import comm.BotClientMap.Wall.WallType;
+import comm.ClearanceGrid;
+
+/**
+ * The graph PathFinder searches: points on multiples of STEP over the walls'
+ * bounding box, each joined to its eight neighbours. Points closer than
+ * CLEARANCE to a wall are off limits, and so are diagonal steps that would
+ * cut across a wall. Each point's allowed moves are worked out once, when
+ * the lattice is built, along with which points can reach which
+ * (connected components), so that searches only need the walls for
+ * line-of-sight checks and unreachable goals are turned down without one.
+ *
+ * A few landmark points are also picked, spread out as far as they can be
+ * along the lattice, and their lattice distances to every point measured.
+ * By the triangle inequality these bound the length of any path (ALT), a
+ * much better guess than the straight-line distance through a maze of
+ * walls.
+ *
+ * There is one lattice per map, rebuilt whenever the map's version changes.
+ * It also keeps the most recent plans made on it, and the approach field
+ * for each type of wall that has been asked for, which go with it when the
+ * map changes.
+ */
+class Lattice {
+	final static double STEP = 0.5; // Grid units.
+	final static double CLEARANCE = 0.25; // Grid units between a point and the nearest wall.
+	// A wall that cuts across a diagonal step between two points CLEARANCE from every wall
+	// passes within (sqrt(2) - 1) * STEP / 2 ~ 0.1 of its middle.
+	private final static double DIAGONAL_CLEARANCE = CLEARANCE / 2;
+	// Straight lines between points keep the robot's body this far off the walls.
+	private final static double LINE_OF_SIGHT_MARGIN_INCHES = 2;
+	private final static int MAX_PLANS = 256;
+	private final static int LANDMARKS = 8;
+	// Lattice paths can be longer than any-angle ones by up to the largest ratio of octile to
+	// straight-line distance, so landmark bounds are divided by this for any-angle searches.
+	final static double ANY_ANGLE_FACTOR = Math.sqrt(4 - 2 * Math.sqrt(2));
+	// Moves 0..7 go anticlockwise from +x; odd moves are diagonal.
+	final static int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+	final static int[] DY = {0, 1, 1, 1, 0, -1, -1, -1};
+
+	private final static Map<BotClientMap, Lattice> lattices = new WeakHashMap<BotClientMap, Lattice>();
+
+	final int version;
+	final double x0;
+	final double y0;
+	final int width;
+	final int height;
+	private final Wall[] walls;
+	private final ClearanceGrid clearance;
+	private final double lineOfSightClearance;
+	private final byte[] moves; // Bit k is set if move k is allowed from the point.
+	private final int[] components; // -1 for points that are off limits.
+	private final int numLandmarks;
+	// Lattice distance from each point to each landmark, point by point, or 0 for points the
+	// landmarks cannot reach.
+	private final double[] landmarkDistances;
+	private final Map<Long, int[]> plans = new LinkedHashMap<Long, int[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+			return size() > MAX_PLANS;
+		}
+	};
+	private final Map<WallType, ApproachField> approaches = new EnumMap<WallType, ApproachField>(WallType.class);
+
+	/**
+	 * The lattice for the map as it is now.
+	 */
+	static Lattice of(BotClientMap map) {
+		int version = map.getVersion();
+		synchronized (lattices) {
+			Lattice lattice = lattices.get(map);
+			if (lattice == null || lattice.version != version) {
+				lattice = new Lattice(map, version);
+				lattices.put(map, lattice);
+			}
+			return lattice;
+		}
+	}
+
+	private Lattice(BotClientMap map, int version) {
+		this.version = version;
+		List<Wall> mapWalls = map.getWalls();
+		double minx = Double.POSITIVE_INFINITY;
+		double maxx = Double.NEGATIVE_INFINITY;
+		double miny = Double.POSITIVE_INFINITY;
+		double maxy = Double.NEGATIVE_INFINITY;
+		for (Wall w : mapWalls) {
+			minx = Math.min(minx, Math.min(w.start.x, w.end.x));
+			maxx = Math.max(maxx, Math.max(w.start.x, w.end.x));
+			miny = Math.min(miny, Math.min(w.start.y, w.end.y));
+			maxy = Math.max(maxy, Math.max(w.start.y, w.end.y));
+		}
+		if (mapWalls.isEmpty()) {
+			minx = maxx = miny = maxy = 0;
+		}
+		this.x0 = STEP * (Math.floor(minx / STEP) - 1);
+		this.y0 = STEP * (Math.floor(miny / STEP) - 1);
+		this.width = (int) Math.round((STEP * (Math.ceil(maxx / STEP) + 1) - x0) / STEP) + 1;
+		this.height = (int) Math.round((STEP * (Math.ceil(maxy / STEP) + 1) - y0) / STEP) + 1;
+		this.moves = new byte[width * height];
+		this.components = new int[width * height];
+		this.walls = mapWalls.toArray(new Wall[mapWalls.size()]);
+		this.clearance = map.getClearance();
+		this.lineOfSightClearance = Math.max(CLEARANCE, Navigator.inchesToGridUnits(Robot.ROBOT_RADIUS_INCHES + LINE_OF_SIGHT_MARGIN_INCHES, map));
+		buildMoves();
+		label();
+		double[][] landmarks = chooseLandmarks();
+		this.numLandmarks = landmarks.length;
+		this.landmarkDistances = new double[width * height * numLandmarks];
+		for (int node = 0; node < width * height; node++) {
+			for (int k = 0; k < numLandmarks; k++) {
+				double d = landmarks[k][node];
+				landmarkDistances[node * numLandmarks + k] = (d == Double.POSITIVE_INFINITY) ? 0 : d;
+			}
+		}
+	}
+
+	private void buildMoves() {
+		boolean[] open = new boolean[width * height];
+		for (int node = 0; node < open.length; node++) {
+			open[node] = clearance.isClear(x(node), y(node), CLEARANCE);
+		}
+		for (int node = 0; node < open.length; node++) {
+			if (!open[node]) {
+				continue;
+			}
+			int i = node / height;
+			int j = node % height;
+			int allowed = 0;
+			for (int k = 0; k < 8; k++) {
+				int ni = i + DX[k];
+				int nj = j + DY[k];
+				if (ni < 0 || nj < 0 || ni >= width || nj >= height || !open[ni * height + nj]) {
+					continue;
+				}
+				if ((k & 1) == 1 && !clearance.isClear(x(node) + DX[k] * STEP / 2, y(node) + DY[k] * STEP / 2, DIAGONAL_CLEARANCE)) {
+					continue;
+				}
+				allowed |= 1 << k;
+			}
+			moves[node] = (byte) allowed;
+		}
+		for (int node = 0; node < open.length; node++) {
+			components[node] = open[node] ? Integer.MAX_VALUE : -1;
+		}
+	}
+
+	/*
+	 * Numbers the connected components by breadth-first search.
+	 */
+	private void label() {
+		int[] queue = new int[components.length];
+		int count = 0;
+		for (int seed = 0; seed < components.length; seed++) {
+			if (components[seed] != Integer.MAX_VALUE) {
+				continue;
+			}
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = seed;
+			components[seed] = count;
+			while (head < tail) {
+				int node = queue[head++];
+				for (int k = 0; k < 8; k++) {
+					if (allowed(node, k)) {
+						int neighbor = neighbor(node, k);
+						if (components[neighbor] == Integer.MAX_VALUE) {
+							components[neighbor] = count;
+							queue[tail++] = neighbor;
+						}
+					}
+				}
+			}
+			count++;
+		}
+	}
+
+	/*
+	 * Picks landmarks in the largest connected component, each as far as
+	 * possible along the lattice from those already picked, and measures
+	 * the distances from each to every point.
+	 */
+	private double[][] chooseLandmarks() {
+		int[] sizes = new int[size()];
+		int largest = -1;
+		for (int node = 0; node < size(); node++) {
+			if (isOpen(node)) {
+				sizes[components[node]]++;
+				if (largest < 0 || sizes[components[node]] > sizes[components[largest]]) {
+					largest = node;
+				}
+			}
+		}
+		if (largest < 0) {
+			return new double[0][];
+		}
+		// Distance from each point to the nearest landmark so far, starting from an arbitrary point.
+		double[] nearest = distancesFrom(largest);
+		double[][] chosen = new double[LANDMARKS][];
+		int count = 0;
+		while (count < LANDMARKS) {
+			int farthest = -1;
+			for (int node = 0; node < size(); node++) {
+				if (nearest[node] != Double.POSITIVE_INFINITY && (farthest < 0 || nearest[node] > nearest[farthest])) {
+					farthest = node;
+				}
+			}
+			if (nearest[farthest] == 0) {
+				break;
+			}
+			chosen[count] = distancesFrom(farthest);
+			for (int node = 0; node < size(); node++) {
+				nearest[node] = Math.min(nearest[node], chosen[count][node]);
+			}
+			count++;
+		}
+		return Arrays.copyOf(chosen, count);
+	}
+
+	/**
+	 * Lattice distances from the source to every point, by Dijkstra's
+	 * algorithm; infinite for points that cannot be reached.
+	 */
+	double[] distancesFrom(int source) {
+		return distancesFrom(new int[] {source}, null, null);
+	}
+
+	/**
+	 * Lattice distances from the nearest of the sources to every point, by
+	 * Dijkstra's algorithm run from all of them at once; infinite for points
+	 * that cannot reach any. If seeds is given, each source starts at its
+	 * seed rather than at 0, and a source can be nearer another one than to
+	 * itself. If toward is given, each point's next step along a shortest
+	 * path to its nearest source is put in it, or -1 for the sources nearest
+	 * themselves and points that cannot reach one.
+	 */
+	double[] distancesFrom(int[] sources, double[] seeds, int[] toward) {
+		double[] distances = new double[size()];
+		Arrays.fill(distances, Double.POSITIVE_INFINITY);
+		if (toward != null) {
+			Arrays.fill(toward, -1);
+		}
+		NodeHeap open = new NodeHeap();
+		open.reset(size());
+		for (int i = 0; i < sources.length; i++) {
+			double seed = (seeds != null) ? seeds[i] : 0;
+			distances[sources[i]] = seed;
+			open.put(sources[i], seed);
+		}
+		while (!open.isEmpty()) {
+			int node = open.pop();
+			for (int k = 0; k < 8; k++) {
+				if (allowed(node, k)) {
+					int neighbor = neighbor(node, k);
+					double d = distances[node] + cost(k);
+					if (d < distances[neighbor]) {
+						distances[neighbor] = d;
+						open.put(neighbor, d);
+						if (toward != null) {
+							toward[neighbor] = node;
+						}
+					}
+				}
+			}
+		}
+		return distances;
+	}
+
+	/**
+	 * The approach field for walls of the given type, made the first time it
+	 * is asked for on this lattice.
+	 */
+	ApproachField approachField(WallType type) {
+		synchronized (approaches) {
+			ApproachField field = approaches.get(type);
+			if (field == null) {
+				field = new ApproachField(this, walls, type);
+				approaches.put(type, field);
+			}
+			return field;
+		}
+	}
+
+	/**
+	 * A lower bound on the length of the lattice path between two connected
+	 * points, from the triangle inequality on their distances to the
+	 * landmarks. Zero if no landmark is in their part of the lattice.
+	 */
+	double landmarkBound(int a, int b) {
+		double bound = 0;
+		int i = a * numLandmarks;
+		int j = b * numLandmarks;
+		for (int k = 0; k < numLandmarks; k++) {
+			bound = Math.max(bound, Math.abs(landmarkDistances[i + k] - landmarkDistances[j + k]));
+		}
+		return bound;
+	}
+
+	int size() {
+		return width * height;
+	}
+
+	double x(int node) {
+		return x0 + (node / height) * STEP;
+	}
+
+	double y(int node) {
+		return y0 + (node % height) * STEP;
+	}
+
+	/**
+	 * Whether the other lattice has the same points as this one, so that
+	 * point numbers mean the same in both.
+	 */
+	boolean sameShape(Lattice other) {
+		return x0 == other.x0 && y0 == other.y0 && width == other.width && height == other.height;
+	}
+
+	/**
+	 * Whether a point's moves are different in the other lattice, which
+	 * must be the same shape.
+	 */
+	boolean changed(Lattice other, int node) {
+		return moves[node] != other.moves[node];
+	}
+
+	boolean allowed(int node, int move) {
+		return (moves[node] & (1 << move)) != 0;
+	}
+
+	int neighbor(int node, int move) {
+		return node + DX[move] * height + DY[move];
+	}
+
+	static double cost(int move) {
+		return ((move & 1) == 0) ? STEP : STEP * Math.sqrt(2);
+	}
+
+	boolean isOpen(int node) {
+		return components[node] >= 0;
+	}
+
+	/**
+	 * Whether the robot can drive straight between two points with at least
+	 * LINE_OF_SIGHT_MARGIN_INCHES between its body and every wall.
+	 */
+	boolean lineOfSight(double x1, double y1, double x2, double y2) {
+		return clearance.isClear(x1, y1, x2, y2, lineOfSightClearance);
+	}
+
+	/**
+	 * How far the robot's centre stays from every wall on a straight run
+	 * that passes lineOfSight().
+	 */
+	double lineOfSightClearance() {
+		return lineOfSightClearance;
+	}
+
+	boolean lineOfSight(int a, int b) {
+		return a == b || lineOfSight(x(a), y(a), x(b), y(b));
+	}
+
+	/**
+	 * Whether there is a path between two open points.
+	 */
+	boolean connected(int a, int b) {
+		return components[a] == components[b];
+	}
+
+	/**
+	 * The nearest open point among the corners of the lattice square that
+	 * (x, y) is in, or -1 if they are all off limits or off the lattice.
+	 */
+	int nearestOpen(double x, double y) {
+		int i = (int) Math.floor((x - x0) / STEP);
+		int j = (int) Math.floor((y - y0) / STEP);
+		int best = -1;
+		double bestDistance = Double.POSITIVE_INFINITY;
+		for (int di = 0; di <= 1; di++) {
+			for (int dj = 0; dj <= 1; dj++) {
+				int ci = i + di;
+				int cj = j + dj;
+				if (ci < 0 || cj < 0 || ci >= width || cj >= height) {
+					continue;
+				}
+				int node = ci * height + cj;
+				double d = (x(node) - x) * (x(node) - x) + (y(node) - y) * (y(node) - y);
+				if (isOpen(node) && d < bestDistance) {
+					best = node;
+					bestDistance = d;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A plan made earlier between the two points, or null.
+	 */
+	int[] cachedPlan(int start, int goal) {
+		synchronized (plans) {
+			return plans.get((long) start * size() + goal);
+		}
+	}
+
+	void cachePlan(int start, int goal, int[] plan) {
+		synchronized (plans) {
+			plans.put((long) start * size() + goal, plan);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package handlebar;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Pose;
+import comm.SensorDataListener;
+import comm.SensorSnapshot;
+
+/**
+ * Runs a ProbabilisticPose on its own thread, so that a slow resample never
+ * holds up the motor commands. Every PERIOD_MILLIS, on the first sensor frame
+ * the Robot receives after that (or without one, if none arrives within
+ * another period), it moves the particles by the odometry since the last
+ * time, weighs them against the IR readings whenever the robot has moved far
+ * enough, and publishes the resulting pose. Readers get the latest pose in
+ * constant time with getPose().
+ *
+ * Each step adds the same motion noise to the particles however little time
+ * it covers, so steps must not come more often than the period the noise was
+ * tuned for, or the particles spread faster than the robot's real error.
+ */
+public class Localizer implements Runnable {
+	final static long PERIOD_MILLIS = 30;
+	// The particles are weighed against the IR readings whenever the robot has driven
+	// MEASUREMENT_DISTANCE grid units or turned MEASUREMENT_RADIANS since the last time,
+	// and only resampled when too few of them are left carrying the weight.
+	private final static double MEASUREMENT_DISTANCE = 0.25;
+	private final static double MEASUREMENT_RADIANS = Math.PI / 18.0;
+
+	/**
+	 * Where the odometry and IR ranges come from: the Robot, or a simulated
+	 * one.
+	 */
+	interface Sensors {
+		// Radians.
+		double getHeadingRadians();
+
+		// Total distance driven, in inches.
+		double getTotalDistance();
+
+		// Left, front and right IR distances, in inches.
+		double[] getIRDistances();
+	}
+
+	private final Robot robot; // Null when stepped by hand.
+	private final Sensors sensors;
+	private final BotClientMap map;
+	private final ProbabilisticPose probPose;
+	private final AtomicReference<Pose> pose;
+	private final Object frameLock = new Object();
+	private long frames = 0;
+	private volatile boolean trackDistance = false;
+	private volatile boolean running = false;
+	private volatile long updates = 0;
+	private volatile long measurements = 0;
+	private volatile long resamples = 0;
+	private volatile long lastUpdateNanos = 0;
+	private Thread thread;
+
+	// Only touched by the localization thread.
+	private double lastDistance;
+	private double lastMeasurementDistance;
+	private double lastMeasurementHeading;
+
+	private final SensorDataListener frameListener = new SensorDataListener() {
+		@Override
+		public void sensorDataUpdated(SensorSnapshot snapshot) {
+			synchronized (frameLock) {
+				frames++;
+				frameLock.notifyAll();
+			}
+		}
+	};
+
+	public Localizer(Robot robot, BotClientMap map, ProbabilisticPose probPose, Pose initial) {
+		this(robot, robot, map, probPose, initial);
+	}
+
+	/**
+	 * A Localizer that is never started, but stepped by hand with step(), one
+	 * period at a time: MissionSimulator's, say.
+	 */
+	Localizer(Sensors sensors, BotClientMap map, ProbabilisticPose probPose, Pose initial) {
+		this(null, sensors, map, probPose, initial);
+		probPose.prepare(map);
+		resetOdometry();
+	}
+
+	private Localizer(Robot robot, Sensors sensors, BotClientMap map, ProbabilisticPose probPose, Pose initial) {
+		this.robot = robot;
+		this.sensors = sensors;
+		this.map = map;
+		this.probPose = probPose;
+		this.pose = new AtomicReference<Pose>(new Pose(initial.x, initial.y, initial.theta));
+	}
+
+	/**
+	 * Starts the localization thread, once anything the particle filter works
+	 * out from the map has been built.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		if (robot == null) {
+			throw new IllegalStateException("Localizer without a Robot is stepped by hand");
+		}
+		probPose.prepare(map);
+		resetOdometry();
+		running = true;
+		robot.addSensorDataListener(frameListener);
+		thread = new Thread(this, "Localizer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		robot.removeSensorDataListener(frameListener);
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * The most recent pose estimate. Shared between readers; do not modify.
+	 */
+	public Pose getPose() {
+		return pose.get();
+	}
+
+	/**
+	 * Whether the encoder distance should move the particles. Navigator only
+	 * turns this on while driving straight; while turning in place the
+	 * wheels' distance is just slip.
+	 */
+	public void setDistanceTracking(boolean trackDistance) {
+		this.trackDistance = trackDistance;
+	}
+
+	/**
+	 * Number of pose estimates published so far.
+	 */
+	public long getUpdateCount() {
+		return updates;
+	}
+
+	/**
+	 * Number of times the particles have been weighed against the IR
+	 * readings, and how many of those resampled them.
+	 */
+	public long getMeasurementCount() {
+		return measurements;
+	}
+
+	public long getResampleCount() {
+		return resamples;
+	}
+
+	/**
+	 * How long working out the last estimate took, in nanoseconds.
+	 */
+	public long getLastUpdateNanos() {
+		return lastUpdateNanos;
+	}
+
+	@Override
+	public void run() {
+		long seen = 0;
+		long lastStep = System.nanoTime();
+		while (running) {
+			try {
+				long wait = lastStep + PERIOD_MILLIS * 1000000L - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				}
+				synchronized (frameLock) {
+					if (frames == seen) {
+						frameLock.wait(PERIOD_MILLIS);
+					}
+					seen = frames;
+				}
+			} catch (InterruptedException e) {
+				continue;
+			}
+			long start = System.nanoTime();
+			lastStep = start;
+			long resampled = resamples;
+			step();
+			lastUpdateNanos = System.nanoTime() - start;
+			updates++;
+			if (resamples != resampled) {
+				System.out.println("Resampling");
+			}
+		}
+	}
+
+	private void resetOdometry() {
+		lastDistance = sensors.getTotalDistance();
+		lastMeasurementDistance = lastDistance;
+		lastMeasurementHeading = sensors.getHeadingRadians();
+	}
+
+	/**
+	 * One period's update: moves the particles by the odometry since the
+	 * last step, weighs them if the robot has moved far enough, and
+	 * publishes the estimate.
+	 */
+	void step() {
+		double heading = sensors.getHeadingRadians();
+		double total = sensors.getTotalDistance();
+		// The estimate's heading is kept within (-pi, pi]; the gyro's is not.
+		final double dTheta = Navigator.normalize(heading - pose.get().theta);
+		final double distanceSinceLastUpdate = (total - lastDistance) / map.gridSize; // The "unit" here is the grid size, or 22 inches. EG if the robot has gone 44 inches, the "distance travelled" will be 2 grid squares.
+		lastDistance = total;
+		probPose.perturb(trackDistance ? distanceSinceLastUpdate : 0.0, dTheta);
+		if (Math.abs(total - lastMeasurementDistance) / map.gridSize > MEASUREMENT_DISTANCE
+				|| Math.abs(Navigator.normalize(heading - lastMeasurementHeading)) > MEASUREMENT_RADIANS) {
+			double[] readings = sensors.getIRDistances();
+			for (int i = 0; i < readings.length; i++) {
+				readings[i] = Navigator.inchesToGridUnits(readings[i], map);
+			}
+			if (probPose.update(map, readings)) {
+				resamples++;
+			}
+			measurements++;
+			lastMeasurementDistance = total;
+			lastMeasurementHeading = heading;
+		}
+		pose.set(probPose.representativePose());
+	}
+}
@@ -0,0 +1,284 @@
+package handlebar;
+
+import handlebar.PathFinder.NoPathFoundException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Point;
+import comm.BotClientMap.Pose;
+import comm.MapleComm;
+import comm.MapleEmulator;
+
+/**
+ * Replays missions in a SimulatedWorld: plan with a Replanner, localize with
+ * a Localizer, and drive each leg the way Navigator does (turn, then drive
+ * the leg's length by the encoder while holding the heading, then replan
+ * from the pose estimate).
+ *
+ * Navigator and its Localizer are paced by sleeping threads, so they can
+ * only run in real time. Instead, the default mode steps the Localizer by
+ * hand, once per Localizer period, and the same driving logic with it, as
+ * fast as the CPU allows, for regression and performance testing. The
+ * "realtime" mode runs the real Robot and Navigator against an emulated Maple
+ * whose sensors the world drives.
+ *
+ * Usage: MissionSimulator [missions [particles | min:max]] | realtime
+ */
+public class MissionSimulator {
+	private final static double STEP_SECONDS = Localizer.PERIOD_MILLIS / 1000.0;
+	private final static double MISSION_TIMEOUT_SECONDS = 120.0;
+	private final static double TURN_THRESHOLD_RADIANS = Math.PI / 18.0; // As in Navigator.
+	private final static double SPEED = 0.3;
+	private final static double P = 1.0; // PID gains, as in Navigator.
+	private final static double D = 0.75;
+
+	public static class Result {
+		public boolean reached;
+		public double seconds;
+		public double error;
+		public int collisions;
+		public double meanParticles; // Averaged over measurements.
+		public int measurements;
+		public int resamples;
+	}
+
+	private final BotClientMap map;
+	private final int minParticles;
+	private final int maxParticles;
+
+	private SimulatedWorld world;
+	private Odometry odometry;
+	private ProbabilisticPose probPose;
+	private Localizer localizer;
+	private Pose estimate;
+	private double lastError;
+	private long particleSum;
+	private List<Point> reachable;
+
+	/**
+	 * What Robot would report for the simulated world: the gyro and encoder
+	 * integrated since the start, and the latest IR readings.
+	 */
+	private class Odometry implements Localizer.Sensors {
+		private double heading = map.startPose.theta;
+		private double totalDistance = 0;
+
+		/**
+		 * Reads the sensors after the world has been stepped. Returns the
+		 * inches driven.
+		 */
+		double read() {
+			double inches = world.readDistanceInches();
+			heading += world.readHeadingChange();
+			totalDistance += inches;
+			return inches;
+		}
+
+		@Override
+		public double getHeadingRadians() {
+			return heading;
+		}
+
+		@Override
+		public double getTotalDistance() {
+			return totalDistance;
+		}
+
+		@Override
+		public double[] getIRDistances() {
+			return world.readIRInches();
+		}
+	}
+
+	public MissionSimulator(BotClientMap map, int numParticles) {
+		this(map, numParticles, numParticles);
+	}
+
+	/**
+	 * Localizes with an adaptive particle count between the given bounds.
+	 */
+	public MissionSimulator(BotClientMap map, int minParticles, int maxParticles) {
+		this.map = map;
+		this.minParticles = minParticles;
+		this.maxParticles = maxParticles;
+	}
+
+	/**
+	 * Drives from the map's start pose to the goal.
+	 */
+	public Result run(Point goal, long seed) throws NoPathFoundException {
+		world = new SimulatedWorld(map, map.startPose, seed);
+		odometry = new Odometry();
+		probPose = new ProbabilisticPose(map.startPose, minParticles, maxParticles);
+		localizer = new Localizer(odometry, map, probPose, map.startPose);
+		estimate = localizer.getPose();
+		lastError = 0;
+		particleSum = 0;
+
+		Replanner planner = new Replanner(map, goal);
+		List<Point> points = planner.plan(estimate);
+		while (points.size() > 1 && world.getTime() <= MISSION_TIMEOUT_SECONDS) {
+			Point point = points.get(1);
+			double theta = Math.atan2(point.y - estimate.y, point.x - estimate.x);
+			double squares = Math.sqrt((point.y - estimate.y) * (point.y - estimate.y) + (point.x - estimate.x) * (point.x - estimate.x));
+			turn(theta);
+			forward(theta, squares * map.gridSize);
+			if (points.size() == 2) {
+				break;
+			}
+			try {
+				points = planner.plan(estimate);
+			} catch (NoPathFoundException e) {
+				points = points.subList(1, points.size());
+			}
+		}
+		world.setMotorPowers(0, 0);
+
+		Pose actual = world.getTruePose();
+		Result result = new Result();
+		result.error = Math.sqrt((goal.x - actual.x) * (goal.x - actual.x) + (goal.y - actual.y) * (goal.y - actual.y));
+		result.reached = result.error < 0.5;
+		result.seconds = world.getTime();
+		result.collisions = world.getCollisions();
+		result.measurements = (int) localizer.getMeasurementCount();
+		result.resamples = (int) localizer.getResampleCount();
+		result.meanParticles = (result.measurements > 0) ? (double) particleSum / result.measurements : probPose.getParticleCount();
+		return result;
+	}
+
+	private void turn(double targetHeading) {
+		while (Math.abs(Navigator.normalize(estimate.theta - targetHeading)) > TURN_THRESHOLD_RADIANS
+				&& world.getTime() < MISSION_TIMEOUT_SECONDS) {
+			double out = control(targetHeading);
+			world.setMotorPowers(out / Math.PI, out / -Math.PI);
+			step(false);
+		}
+	}
+
+	private void forward(double targetHeading, double inches) {
+		double travelled = 0;
+		double speed = SPEED;
+		while (travelled < inches && world.getTime() < MISSION_TIMEOUT_SECONDS) {
+			if (inches - travelled < 5) {
+				speed = Math.min(0.3, speed);
+			}
+			if (inches - travelled < 2) {
+				speed = Math.min(0.2, speed);
+			}
+			double out = control(targetHeading);
+			world.setMotorPowers(out / Math.PI + speed, out / -Math.PI + speed);
+			travelled += step(true);
+		}
+	}
+
+	private double control(double targetHeading) {
+		double err = Navigator.normalize(targetHeading - estimate.theta);
+		double out = P * err + D * (err - lastError);
+		lastError = err;
+		return out;
+	}
+
+	/**
+	 * Advances the world by one Localizer period and steps the Localizer,
+	 * tracking distance only while driving straight as Navigator has it do.
+	 * Returns the inches driven.
+	 */
+	private double step(boolean straight) {
+		world.step(STEP_SECONDS);
+		double inches = odometry.read();
+		long measured = localizer.getMeasurementCount();
+		localizer.setDistanceTracking(straight);
+		localizer.step();
+		if (localizer.getMeasurementCount() != measured) {
+			particleSum += probPose.getParticleCount();
+		}
+		estimate = localizer.getPose();
+		return inches;
+	}
+
+	/**
+	 * Picks a random goal on PathFinder's half-square lattice that can be
+	 * reached from the start pose.
+	 */
+	public Point randomReachableGoal(Random random) {
+		if (reachable == null) {
+			reachable = new ArrayList<Point>();
+			Lattice lattice = Lattice.of(map);
+			int start = lattice.nearestOpen(map.startPose.x, map.startPose.y);
+			for (int node = 0; node < lattice.size(); node++) {
+				if (start >= 0 && lattice.isOpen(node) && lattice.connected(start, node)) {
+					reachable.add(new Point(lattice.x(node), lattice.y(node)));
+				}
+			}
+		}
+		Point p = reachable.get(random.nextInt(reachable.size()));
+		return new Point(p.x, p.y);
+	}
+
+	public static void main(String[] args) {
+		BotClientMap map = BotClientMap.getDefaultMap();
+		if (args.length > 0 && args[0].equals("realtime")) {
+			runRealTime(map);
+			return;
+		}
+		int missions = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		String particles = (args.length > 1) ? args[1] : "1000";
+		String[] bounds = particles.split(":");
+		int minParticles = Integer.parseInt(bounds[0]);
+		int maxParticles = Integer.parseInt(bounds[bounds.length - 1]);
+
+		MissionSimulator sim = new MissionSimulator(map, minParticles, maxParticles);
+		Random random = new Random(0);
+		int reached = 0;
+		int collisions = 0;
+		double seconds = 0;
+		double error = 0;
+		double meanParticles = 0;
+		int measurements = 0;
+		int resamples = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < missions; i++) {
+			try {
+				Result result = sim.run(sim.randomReachableGoal(random), random.nextLong());
+				reached += result.reached ? 1 : 0;
+				collisions += result.collisions;
+				seconds += result.seconds;
+				error += result.error;
+				meanParticles += result.meanParticles;
+				measurements += result.measurements;
+				resamples += result.resamples;
+			} catch (NoPathFoundException e) {
+				e.printStackTrace();
+			}
+		}
+		double wall = (System.nanoTime() - start) / 1000000000.0;
+		System.out.println(String.format("%d missions, %s particles: %.1f s wall clock (%.0f missions/minute)", missions, particles, wall, missions * 60 / wall));
+		System.out.println(String.format("reached %d/%d, mean error %.2f squares, mean mission %.1f s simulated, %d steps touching walls",
+				reached, missions, error / missions, seconds / missions, collisions));
+		System.out.println(String.format("mean particle count %.0f, %d measurement updates, %d resamples", meanParticles / missions, measurements, resamples));
+	}
+
+	/**
+	 * One mission with the real Robot and Navigator, in real time.
+	 */
+	private static void runRealTime(BotClientMap map) {
+		MapleEmulator emulator = new MapleEmulator();
+		SimulatedWorld world = new SimulatedWorld(map, map.startPose, 0);
+		emulator.setSensorModel(world);
+		Robot robot = new Robot(map.startPose.theta, new MapleComm(emulator));
+		Navigator nav = new Navigator(robot, map);
+		Point goal = new MissionSimulator(map, 0).randomReachableGoal(new Random());
+		try {
+			nav.moveToPoint(goal);
+		} catch (NoPathFoundException e) {
+			e.printStackTrace();
+		}
+		nav.halt();
+		System.out.println("Goal " + goal + ", actual " + world.getTruePose() + ", estimated " + nav.pose);
+		System.out.println(String.format("Control loop latency %.2f ms average", emulator.getAverageCommandLatencyNanos() / 1000000.0));
+		System.exit(0);
+	}
+}
@@ -2,18 +2,21 @@ package handlebar;
 
 import java.awt.geom.Line2D;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import handlebar.PathFinder.NoPathFoundException;
 import comm.BotClientMap;
 import comm.BotClientMap.Point;
 import comm.BotClientMap.Pose;
 import comm.BotClientMap.Wall;
+import comm.BotClientMap.Wall.WallType;
 
 public class Navigator {
 	private enum Mode { TURN, STRAIGHT, WALL_FOLLOW, NEUTRAL, STOP }
 
 	public volatile Pose pose;
 	public volatile ProbabilisticPose probPose;
+	private final Localizer localizer;
 	private volatile Mode mode = Mode.NEUTRAL;
 	private volatile double targetHeading; // Radians.
 	private volatile double speed; // Between 0 and 1.
@@ -21,38 +24,29 @@ public class Navigator {
 
 	private final Robot robot;
 	private final BotClientMap map;
-	private long lastRecalcMillis = 0;
 
 	private final double TURN_THRESHOLD_RADIANS = Math.PI / 18.0; // 10 degrees.
+	// Replans per move, after which the last plan is followed as it stands. Each leg
+	// of a plan that is not replaced is one fewer leg to go, so every move ends even
+	// if the robot never gets closer to the target.
+	private final static int MAX_REPLANS = 32;
 	public Navigator(Robot bot, BotClientMap m) {
 		this.robot = bot;
 		this.map = m;
 		pose = m.startPose;
 		targetHeading = pose.theta;
-		probPose = new ProbabilisticPose(m.startPose, 1000);
+		probPose = new ProbabilisticPose(m.startPose, 250, 5000);
+		probPose.setParallel(ForkJoinPool.commonPool());
+		// Localization runs on its own thread; the PID loop just reads the latest pose.
+		localizer = new Localizer(robot, map, probPose, m.startPose);
+		localizer.start();
         // TODO: Tune these parameters based on experimentation.
         new PidController(1, 0, 0.75,
         		new ErrorCalculator() {
 		        	@Override
 			        public double getError() {
-		        		final double dTheta = robot.getHeadingRadians() - pose.theta;
-		        		final double distanceSinceLastUpdate = (robot.getTotalDistance() - distance) / map.gridSize; // The "unit" here is the grid size, or 22 inches. EG if the robot has gone 44 inches, the "distance travelled" will be 2 grid squares.
 		        		distance = robot.getTotalDistance();
-						if (mode.equals(Mode.STRAIGHT)) {
-							probPose.perturb(distanceSinceLastUpdate, dTheta);
-						}
-						else {
-							probPose.perturb(0.0, dTheta);
-						}
-						if (lastRecalcMillis != 0 && System.currentTimeMillis() - lastRecalcMillis > 2000) {
-							System.out.println("Resampling");
-							probPose.resample(map, new double[] {  inchesToGridUnits(robot.getIRLeft(), map), inchesToGridUnits(robot.getIRFront(), map), inchesToGridUnits(robot.getIRRight(), map) });
-							lastRecalcMillis = System.currentTimeMillis();
-						}
-						else if (lastRecalcMillis == 0) {
-							lastRecalcMillis = System.currentTimeMillis();
-						}
-		        		pose = probPose.representativePose();
+		        		pose = localizer.getPose();
 		        		switch (mode) {
 			        		case WALL_FOLLOW:
 			        			return 0.0; // TODO
@@ -96,6 +90,7 @@ public class Navigator {
 	 */
 	private void setMode(Mode m) {
 		this.mode = m;
+		localizer.setDistanceTracking(m == Mode.STRAIGHT);
 	}
 
 	/**
@@ -172,19 +167,33 @@ public class Navigator {
 	 */
 	public void moveToPoint(Point p) throws NoPathFoundException {
 		System.out.println("moving...");
-		List<Point> points = PathFinder.findPath(map, pose, p);
-		boolean first = true;
-		for (Point point : points) {
-			if (first) {
-				first = false;
-				continue;
-			}
+		// Replan from wherever each leg actually ended up; the planner keeps its
+		// search between legs, so this is cheap.
+		Replanner planner = new Replanner(map, p);
+		List<Point> points = planner.plan(pose);
+		int replans = 0;
+		while (points.size() > 1) {
+			Point point = points.get(1);
 			System.out.println("At " + pose + ", moving to " + point);
 			double theta = Math.atan2(point.y - pose.y, point.x - pose.x);
 			System.out.println("Turning to " + (int)180 / Math.PI * theta);
 			turnToHeadingRadians(theta);
 			System.out.println("Forward " + Math.sqrt((point.y - pose.y) * (point.y - pose.y) + (point.x - pose.x) * (point.x - pose.x)));
 			forwardSquares(0.3, Math.sqrt((point.y - pose.y) * (point.y - pose.y) + (point.x - pose.x) * (point.x - pose.x)));
+			if (points.size() == 2) {
+				break;
+			}
+			if (replans == MAX_REPLANS) {
+				points = points.subList(1, points.size());
+				continue;
+			}
+			replans++;
+			try {
+				points = planner.plan(pose);
+			} catch (NoPathFoundException e) {
+				// Too close to a wall to plan from; carry on with the old plan.
+				points = points.subList(1, points.size());
+			}
 		}
 	}
 
@@ -218,6 +227,38 @@ public class Navigator {
 		return radians;
 	}
 
+	/**
+	 * Drives to the nearest wall of the given type and turns to face it.
+	 * The way there is read off the map's approach field for that type of
+	 * wall rather than searched for, and read again after every leg.
+	 */
+	public void moveToNearest(WallType type) throws NoPathFoundException {
+		System.out.println("moving to nearest " + type + "...");
+		List<Point> points = PathFinder.findPathToNearest(map, pose, type);
+		int replans = 0;
+		while (points.size() > 1) {
+			Point point = points.get(1);
+			System.out.println("At " + pose + ", moving to " + point);
+			turnToHeadingRadians(Math.atan2(point.y - pose.y, point.x - pose.x));
+			forwardSquares(0.3, Math.sqrt((point.y - pose.y) * (point.y - pose.y) + (point.x - pose.x) * (point.x - pose.x)));
+			if (points.size() == 2) {
+				break;
+			}
+			if (replans == MAX_REPLANS) {
+				points = points.subList(1, points.size());
+				continue;
+			}
+			replans++;
+			try {
+				points = PathFinder.findPathToNearest(map, pose, type);
+			} catch (NoPathFoundException e) {
+				points = points.subList(1, points.size());
+			}
+		}
+		Point wall = PathFinder.closestWallPoint(map, pose, type);
+		turnToHeadingRadians(Math.atan2(wall.y - pose.y, wall.x - pose.x));
+	}
+
 	public void depositGreenBalls() {
 		// TODO Auto-generated method stub
 		System.out.println("...");
@@ -0,0 +1,192 @@
+package handlebar;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of node numbers 0..capacity-1 ordered by a double key,
+ * and by a second key between nodes whose first keys are equal. It knows
+ * where each node is, so that a node's key can be changed in place instead
+ * of adding it a second time. Everything is kept in primitive arrays that
+ * are reused across searches.
+ */
+class NodeHeap {
+	private int[] heap = new int[0];
+	private int[] positions = new int[0]; // Where each node is in heap, or -1.
+	private double[] keys = new double[0];
+	private double[] ties = new double[0];
+	private int size = 0;
+	private final double tolerance; // First keys closer than this count as equal.
+
+	NodeHeap() {
+		this(0);
+	}
+
+	/**
+	 * A heap that treats first keys within the tolerance of each other as
+	 * equal, and orders them by their second keys. The tolerance must be
+	 * well below the smallest real difference between keys, or the order is
+	 * not consistent.
+	 */
+	NodeHeap(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Makes room for nodes 0..capacity-1 and empties the heap.
+	 */
+	void reset(int capacity) {
+		if (positions.length < capacity) {
+			heap = new int[capacity];
+			positions = new int[capacity];
+			keys = new double[capacity];
+			ties = new double[capacity];
+			Arrays.fill(positions, -1);
+		}
+		clear();
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			positions[heap[i]] = -1;
+		}
+		size = 0;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	boolean contains(int node) {
+		return positions[node] >= 0;
+	}
+
+	void put(int node, double key) {
+		put(node, key, 0);
+	}
+
+	/**
+	 * Adds the node with the given keys, or changes its keys if it is in the
+	 * heap already.
+	 */
+	void put(int node, double key, double tie) {
+		int i = positions[node];
+		if (i < 0) {
+			i = size++;
+			heap[i] = node;
+			positions[node] = i;
+			keys[node] = key;
+			ties[node] = tie;
+			siftUp(i);
+		}
+		else if (before(key, tie, keys[node], ties[node])) {
+			keys[node] = key;
+			ties[node] = tie;
+			siftUp(i);
+		}
+		else {
+			keys[node] = key;
+			ties[node] = tie;
+			siftDown(i);
+		}
+	}
+
+	/**
+	 * The node with the smallest keys. The heap must not be empty.
+	 */
+	int top() {
+		return heap[0];
+	}
+
+	/**
+	 * The first key of the top node, or infinity if the heap is empty.
+	 */
+	double topKey() {
+		return (size > 0) ? keys[heap[0]] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * The second key of the top node, or infinity if the heap is empty.
+	 */
+	double topTie() {
+		return (size > 0) ? ties[heap[0]] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Whether the top node's keys come before the given ones. False if the
+	 * heap is empty.
+	 */
+	boolean topBefore(double key, double tie) {
+		return size > 0 && before(keys[heap[0]], ties[heap[0]], key, tie);
+	}
+
+	/**
+	 * Removes and returns the node with the smallest keys.
+	 */
+	int pop() {
+		int top = heap[0];
+		remove(top);
+		return top;
+	}
+
+	void remove(int node) {
+		int i = positions[node];
+		if (i < 0) {
+			return;
+		}
+		positions[node] = -1;
+		size--;
+		if (i < size) {
+			int last = heap[size];
+			heap[i] = last;
+			positions[last] = i;
+			siftDown(i);
+			siftUp(positions[last]);
+		}
+	}
+
+	private boolean less(int a, int b) {
+		return before(keys[a], ties[a], keys[b], ties[b]);
+	}
+
+	private boolean before(double key, double tie, double otherKey, double otherTie) {
+		return key < otherKey - tolerance || (key <= otherKey + tolerance && tie < otherTie);
+	}
+
+	private void siftUp(int i) {
+		int node = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			int p = heap[parent];
+			if (!less(node, p)) {
+				break;
+			}
+			heap[i] = p;
+			positions[p] = i;
+			i = parent;
+		}
+		heap[i] = node;
+		positions[node] = i;
+	}
+
+	private void siftDown(int i) {
+		int node = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && less(heap[child + 1], heap[child])) {
+				child++;
+			}
+			int c = heap[child];
+			if (!less(c, node)) {
+				break;
+			}
+			heap[i] = c;
+			positions[c] = i;
+			i = child;
+		}
+		heap[i] = node;
+		positions[node] = i;
+	}
+}
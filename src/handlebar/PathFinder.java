@@ -4,15 +4,9 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.geom.Line2D;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.Set;
 
 import javax.swing.JComponent;
 import javax.swing.JFrame;
@@ -20,118 +14,336 @@ import javax.swing.JFrame;
 import comm.BotClientMap;
 import comm.BotClientMap.Point;
 import comm.BotClientMap.Wall;
+import comm.BotClientMap.Wall.WallType;
 
 /**
+ * Any-angle planning (Lazy Theta*) over the map's Lattice: points on a
+ * half-square grid, 8-connected, kept clear of the walls. The search runs
+ * like A*, except that a point may take its parent's parent as its own
+ * whenever the straight line between them keeps clear of the walls, so
+ * paths are a few long, straight legs rather than a chain of half-square
+ * steps. Lines of sight are only checked when a point is expanded.
+ *
+ * The path runs from the origin to the destination through the turning
+ * points of the plan between the open lattice corners nearest each. Those
+ * corners are only kept if the origin or destination cannot see the next
+ * turning point itself, and waypoints in a straight line with their
+ * neighbours are dropped, so that Navigator only stops to turn when it
+ * has to. Destinations with no open lattice point within GOAL_RADIUS are
+ * too close to a wall to plan to.
+ *
+ * Goals in a different part of the lattice from the origin are turned down
+ * straight away, from the lattice's connected components. Plans are cached
+ * on the lattice by start and goal point, so driving the same route again
+ * (or from anywhere near the same start) does not search at all.
+ *
+ * findPathToNearest() does not search: it follows the lattice's approach
+ * field for the type of wall, made once per map, to the open point beside
+ * a wall of that type that is nearest the wall, then goes straight in
+ * until the robot is as close to the wall as line of sight allows.
+ *
+ * Searches are guided by the lattice's landmark distances (ALT), which
+ * know about the walls in the way, as well as by straight-line distance.
+ *
+ * The search state is a handful of primitive arrays indexed by point
+ * number, reused from one search to the next on the same thread.
+ *
  * OTHER IDEAS: Same algorithm but with wall distances? Same algorithm but just as incremental PID targets?
  * @author cwgordon7
  *
  */
 public class PathFinder {
+	// Among points with equal f scores, the one furthest from the start is expanded first.
+	private final static double TIE_BREAK = 1e-9;
+	// The path ends at the destination, so the lattice point before it has to be close by.
+	private final static double GOAL_RADIUS = 0.25 * Math.sqrt(2);
+	private static volatile boolean usePlanCache = true;
+	private static volatile boolean useLandmarks = true;
+
+	private final static ThreadLocal<Search> searches = new ThreadLocal<Search>() {
+		@Override
+		protected Search initialValue() {
+			return new Search();
+		}
+	};
+
 	public static List<Point> findPath(BotClientMap m, Point origin, Point destination) throws NoPathFoundException {
-		PathFinderPoint start = new PathFinderPoint(new Point(origin.x, origin.y), distance(origin, destination));
-		PathFinderPoint goal = new PathFinderPoint(destination, 0);
-		Set<PathFinderPoint> closedset = new HashSet<PathFinderPoint>();
-		Queue<PathFinderPoint> openset = new PriorityQueue<PathFinderPoint>();
-		openset.add(start);
-		Map<PathFinderPoint, PathFinderPoint> came_from = new HashMap<PathFinderPoint, PathFinderPoint>();
-
-		Map<PathFinderPoint, Double> g_score = new HashMap<PathFinderPoint, Double>();
-		g_score.put(start, 0.0);
-		while (!openset.isEmpty()) {
-			PathFinderPoint point = openset.poll();
-			if (distance(point.p, goal.p) < 0.25 * Math.sqrt(2)) {
-				return reconstructPath(came_from, goal);
-			}
-			closedset.add(point);
-			for (Point neighbor : point.neighbors()) {
-				if (closedset.contains(new PathFinderPoint(neighbor, 0))) {
-					continue;
-				}
-				boolean invalid = false;
-				for (Wall w : m.walls) {
-					double dist = Line2D.ptSegDist(w.start.x, w.start.y, w.end.x, w.end.y, neighbor.x, neighbor.y);
-					if (dist < 0.25) {
-						invalid = true;
-					}
-				}
-				if (invalid) {
-					continue;
-				}
-				double tentative_g_score = g_score.get(point) + distance(point.p, neighbor);
-				if (!openset.contains(new PathFinderPoint(neighbor, 0)) || tentative_g_score < g_score.get(new PathFinderPoint(neighbor, 0))) {
-					double calculated_f_score = tentative_g_score + distance(neighbor, destination);
-					PathFinderPoint neighborPoint = new PathFinderPoint(neighbor, calculated_f_score);
-					came_from.put(neighborPoint, point);
-					g_score.put(neighborPoint, tentative_g_score);
-					if (!openset.contains(neighbor)) {
-						openset.add(neighborPoint);
-					}
-				}
+		Lattice lattice = Lattice.of(m);
+		int start = lattice.nearestOpen(origin.x, origin.y);
+		int goal = goal(lattice, destination);
+		if (start < 0 || goal < 0 || !lattice.connected(start, goal)) {
+			throw new NoPathFoundException();
+		}
+		int[] plan = usePlanCache ? lattice.cachedPlan(start, goal) : null;
+		searches.get().expansions = 0;
+		if (plan == null) {
+			plan = searches.get().run(lattice, start, goal);
+			if (usePlanCache) {
+				lattice.cachePlan(start, goal, plan);
 			}
 		}
-		throw new NoPathFoundException();
+		return toPath(lattice, plan, origin, destination);
 	}
 
-	public static List<Point> reconstructPath(Map<PathFinderPoint, PathFinderPoint> came_from, PathFinderPoint current_node) {
-		List<Point> list;
-		if (came_from.containsKey(current_node)) {
-			list = reconstructPath(came_from, came_from.get(current_node));
+	/**
+	 * A path from the origin to the nearest point the robot can stand at
+	 * beside a wall of the given type (a silo or reactor, say), in time
+	 * proportional to the length of the way there.
+	 */
+	public static List<Point> findPathToNearest(BotClientMap m, Point origin, WallType type) throws NoPathFoundException {
+		Lattice lattice = Lattice.of(m);
+		int start = lattice.nearestOpen(origin.x, origin.y);
+		if (start < 0) {
+			throw new NoPathFoundException();
 		}
-		else {
-			list = new ArrayList<Point>();
+		ApproachField field = lattice.approachField(type);
+		if (!field.reaches(start)) {
+			throw new NoPathFoundException();
 		}
-		list.add(current_node.p);
-		return list;
+		int[] plan = shortcut(lattice, field.route(start));
+		return toPath(lattice, plan, origin, field.stop(plan[plan.length - 1]));
 	}
 
-	public static class PathFinderPoint implements Comparable<PathFinderPoint> {
-		private Point p;
-		private double cost;
-		public PathFinderPoint(Point p, double cost) {
-			this.p = p;
-			this.cost = cost;
+	/**
+	 * The closest point to p on any wall of the given type, or null if the
+	 * map has none.
+	 */
+	public static Point closestWallPoint(BotClientMap m, Point p, WallType type) {
+		return Lattice.of(m).approachField(type).closestWallPoint(p.x, p.y);
+	}
+
+	/**
+	 * The path from the origin to the destination through a plan's turning
+	 * points, leaving out the lattice points at either end if the origin or
+	 * destination can see past them.
+	 */
+	static List<Point> toPath(Lattice lattice, int[] plan, Point origin, Point destination) {
+		List<Point> list = new ArrayList<Point>(plan.length + 2);
+		list.add(new Point(origin.x, origin.y));
+		for (int i = 0; i < plan.length; i++) {
+			Point p = new Point(lattice.x(plan[i]), lattice.y(plan[i]));
+			if (i == 0 && plan.length > 1 && lattice.lineOfSight(origin.x, origin.y, lattice.x(plan[1]), lattice.y(plan[1]))) {
+				continue;
+			}
+			if (i == plan.length - 1 && lattice.lineOfSight(list.get(list.size() - 1).x, list.get(list.size() - 1).y, destination.x, destination.y)) {
+				continue;
+			}
+			list.add(p);
 		}
+		list.add(destination);
+		return prune(list);
+	}
 
-		@Override
-		public int compareTo(PathFinderPoint other) {
-			// TODO Auto-generated method stub
-			if (this.cost > other.cost) {
-				return 1;
+	/**
+	 * The points of a lattice path where it has to turn: each is the
+	 * furthest point along the path in sight of the one before.
+	 */
+	static int[] shortcut(Lattice lattice, int[] path) {
+		int[] turns = new int[path.length];
+		int count = 0;
+		turns[count++] = path[0];
+		for (int i = 2; i < path.length; i++) {
+			if (!lattice.lineOfSight(turns[count - 1], path[i])) {
+				turns[count++] = path[i - 1];
 			}
-			else if (this.cost < other.cost) {
-				return -1;
+		}
+		if (path.length > 1) {
+			turns[count++] = path[path.length - 1];
+		}
+		return Arrays.copyOf(turns, count);
+	}
+
+	/**
+	 * Drops waypoints that are on top of the one before them or in a straight
+	 * line between their neighbours. The first and last points are kept.
+	 */
+	static List<Point> prune(List<Point> path) {
+		List<Point> pruned = new ArrayList<Point>(path.size());
+		for (Point p : path) {
+			int n = pruned.size();
+			if (n > 0 && distance(p.x, p.y, pruned.get(n - 1)) < 1e-9) {
+				if (n > 1 || p == path.get(path.size() - 1)) {
+					pruned.set(n - 1, p);
+				}
+				continue;
 			}
-			else {
-				return 0;
+			if (n > 1) {
+				Point a = pruned.get(n - 2);
+				Point b = pruned.get(n - 1);
+				double cross = (b.x - a.x) * (p.y - b.y) - (b.y - a.y) * (p.x - b.x);
+				double dot = (b.x - a.x) * (p.x - b.x) + (b.y - a.y) * (p.y - b.y);
+				if (Math.abs(cross) < 1e-9 && dot > 0) {
+					pruned.set(n - 1, p);
+					continue;
+				}
 			}
+			pruned.add(p);
+		}
+		return pruned;
+	}
+
+	/**
+	 * Whether findPath() reuses earlier plans between the same lattice
+	 * points. On by default; turning it off is mostly useful for measuring
+	 * the search.
+	 */
+	public static void setPlanCacheEnabled(boolean enabled) {
+		usePlanCache = enabled;
+	}
+
+	/**
+	 * Whether searches are guided by the lattice's landmark distances as
+	 * well as straight-line distance. On by default; turning it off is
+	 * mostly useful for measuring the difference. Replanner never uses the
+	 * landmarks, so this does not affect it.
+	 */
+	public static void setLandmarksEnabled(boolean enabled) {
+		useLandmarks = enabled;
+	}
+
+	/**
+	 * The number of points the last search on this thread expanded, or 0 if
+	 * its plan was cached.
+	 */
+	public static int getLastExpansions() {
+		return searches.get().expansions;
+	}
+
+	/**
+	 * Whether there is a path between the two points, in constant time.
+	 */
+	public static boolean isReachable(BotClientMap m, Point origin, Point destination) {
+		Lattice lattice = Lattice.of(m);
+		int start = lattice.nearestOpen(origin.x, origin.y);
+		int goal = goal(lattice, destination);
+		return start >= 0 && goal >= 0 && lattice.connected(start, goal);
+	}
+
+	/**
+	 * The lattice point to plan to, or -1 if the destination is too close
+	 * to a wall to get to.
+	 */
+	static int goal(Lattice lattice, Point destination) {
+		int goal = lattice.nearestOpen(destination.x, destination.y);
+		if (goal < 0 || distance(lattice.x(goal), lattice.y(goal), destination) >= GOAL_RADIUS) {
+			return -1;
 		}
+		return goal;
+	}
 
-		public List<Point> neighbors() {
-			List<Point> list = new ArrayList<Point>();
-			for (int x = -1; x <= 1; x++) {
-				for (int y = -1; y <= 1; y++) {
-					if (x == 0 && y == 0) {
+	/**
+	 * Per-thread search state. A point's g score and parent are only valid
+	 * if its stamp matches the current search's, so nothing needs clearing
+	 * between searches.
+	 */
+	private static class Search {
+		private final NodeHeap open = new NodeHeap();
+		private double[] g = new double[0];
+		private double[] h = new double[0]; // Heuristic, worked out once per point per search.
+		private int[] parents = new int[0];
+		private int[] seen = new int[0];
+		private int[] closed = new int[0];
+		private int stamp = 0;
+		private int expansions = 0;
+
+		/**
+		 * The turning points from start to goal, which must be connected.
+		 */
+		int[] run(Lattice lattice, int start, int goal) {
+			int nodes = lattice.size();
+			if (g.length < nodes) {
+				g = new double[nodes];
+				h = new double[nodes];
+				parents = new int[nodes];
+				seen = new int[nodes];
+				closed = new int[nodes];
+				stamp = 0;
+			}
+			stamp++;
+			open.reset(nodes);
+
+			g[start] = 0;
+			parents[start] = start;
+			seen[start] = stamp;
+			open.put(start, heuristic(lattice, start, goal));
+			expansions = 0;
+			while (!open.isEmpty()) {
+				int node = open.pop();
+				closed[node] = stamp;
+				expansions++;
+				if (!lattice.lineOfSight(parents[node], node)) {
+					// The guess made when the point was reached was wrong; fall back to the
+					// best way in from a neighbour, which always exists.
+					g[node] = Double.POSITIVE_INFINITY;
+					for (int k = 0; k < 8; k++) {
+						if (lattice.allowed(node, k)) {
+							int neighbor = lattice.neighbor(node, k);
+							if (closed[neighbor] == stamp && g[neighbor] + Lattice.cost(k) < g[node]) {
+								g[node] = g[neighbor] + Lattice.cost(k);
+								parents[node] = neighbor;
+							}
+						}
+					}
+				}
+				if (node == goal) {
+					return reconstructPath(start, node);
+				}
+				int parent = parents[node];
+				for (int k = 0; k < 8; k++) {
+					if (!lattice.allowed(node, k)) {
+						continue;
+					}
+					int neighbor = lattice.neighbor(node, k);
+					if (closed[neighbor] == stamp) {
+						continue;
+					}
+					// Assume for now that the parent can see the neighbour.
+					double tentative = g[parent] + distance(lattice, parent, neighbor);
+					if (seen[neighbor] == stamp && tentative >= g[neighbor]) {
 						continue;
 					}
-					list.add(new Point(p.x + 0.5 * x, p.y + 0.5 * y));
+					if (seen[neighbor] != stamp) {
+						seen[neighbor] = stamp;
+						h[neighbor] = heuristic(lattice, neighbor, goal);
+					}
+					g[neighbor] = tentative;
+					parents[neighbor] = parent;
+					open.put(neighbor, tentative + h[neighbor] - TIE_BREAK * tentative);
 				}
 			}
-			return list;
+			throw new IllegalStateException("Lattice points " + start + " and " + goal + " are not connected");
 		}
 
-		@Override
-		public boolean equals(Object obj) {
-			return this.toString().equals(obj.toString());
+		/**
+		 * The straight-line distance, or the landmark bound if that is
+		 * bigger (scaled down, since it bounds lattice paths rather than
+		 * any-angle ones).
+		 */
+		private static double heuristic(Lattice lattice, int node, int goal) {
+			double h = distance(lattice, node, goal);
+			if (useLandmarks) {
+				h = Math.max(h, lattice.landmarkBound(node, goal) / Lattice.ANY_ANGLE_FACTOR);
+			}
+			return h;
 		}
 
-		@Override
-		public int hashCode() {
-			return p.toString().hashCode();
+		private static double distance(Lattice lattice, int a, int b) {
+			double dx = lattice.x(a) - lattice.x(b);
+			double dy = lattice.y(a) - lattice.y(b);
+			return Math.sqrt(dx * dx + dy * dy);
 		}
 
-		@Override
-		public String toString() {
-			return p.toString();
+		private int[] reconstructPath(int start, int node) {
+			int length = 1;
+			for (int n = node; n != start; n = parents[n]) {
+				length++;
+			}
+			int[] plan = new int[length];
+			plan[0] = start;
+			for (int n = node; n != start; n = parents[n]) {
+				plan[--length] = n;
+			}
+			return plan;
 		}
 	}
 
@@ -139,8 +351,8 @@ public class PathFinder {
 		private static final long serialVersionUID = -3290304415089247996L;
 	}
 
-	private static double distance(Point a, Point b) {
-		return Math.sqrt((a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y));
+	private static double distance(double x, double y, Point b) {
+		return Math.sqrt((x - b.x) * (x - b.x) + (y - b.y) * (y - b.y));
 	}
 
 	public static void drawMap() {
@@ -161,7 +373,7 @@ public class PathFinder {
 		    ((Graphics2D)g).setStroke(new BasicStroke(3));
 
 			Color[] colors = new Color[] {Color.black, Color.yellow, new Color(255,0,255), Color.green};
-			for (Wall w : m.walls) {
+			for (Wall w : m.getWalls()) {
 				g.setColor(colors[w.type.ordinal()]);
 				g.drawLine(size * (int)w.start.x, size * -(int)w.start.y, size * (int)w.end.x, size * -(int)w.end.y);
 			}
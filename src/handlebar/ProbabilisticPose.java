@@ -9,7 +9,12 @@ import java.awt.Graphics2D;
 import java.awt.geom.Line2D;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.JComponent;
 import javax.swing.JFrame;
@@ -20,52 +25,398 @@ import comm.BotClientMap.Pose;
 import comm.BotClientMap.Wall;
 
 public class ProbabilisticPose {
-	private final int NUM_TRIALS;
+	/**
+	 * How resample() picks the particles it keeps. MULTINOMIAL draws every
+	 * particle independently (a binary search per draw). The others take a
+	 * single sweep over the cumulative weights and have lower variance:
+	 * SYSTEMATIC uses evenly spaced points with one random offset, STRATIFIED
+	 * one random point in each of N equal strata, and RESIDUAL keeps
+	 * floor(N * weight) copies of each particle deterministically and picks the
+	 * rest systematically from what is left over.
+	 */
+	public enum Resampling {
+		MULTINOMIAL, SYSTEMATIC, STRATIFIED, RESIDUAL
+	}
+
+	private int numParticles;
+	private final int minParticles;
+	private final int maxParticles;
 	private final static double MOTION_ERROR = 0.04; // 0.04 means on a 5 foot run, std error is 5 inches. (tbd experimentally)
 	private final static double ULTRASOUND_FLAKINESS = 0.05; // 5% of ultrasound readings are crap.
 	private final static double ANGLE_ERROR = 0.02; // Angle error (tbd experimentally) 
 	private final static double GYRO_DRIFT = 0.0008; // Look this up in the gyro specs; I think it was on the order of 3 degrees / minute?
 	private final static double SONAR_STDERR = 0.1;
-	private Pose[] poses;
+	// KLD-sampling: keep enough particles that, with 99% probability (z-score KLD_Z),
+	// the K-L divergence between the particle set and the true posterior is below KLD_ERROR.
+	// The posterior's spread is measured by counting occupied bins of half a grid square by 10 degrees.
+	private final static double KLD_ERROR = 0.02;
+	private final static double KLD_Z = 2.326; // 99% quantile.
+	private final static double KLD_BIN_SIZE = 0.5;
+	private final static double KLD_BIN_RADIANS = Math.PI / 18;
+	// Particles are stored as parallel arrays and updated in place. Resampling
+	// writes into the "next" arrays, which are then swapped with the current ones.
+	private double[] xs;
+	private double[] ys;
+	private double[] thetas;
 	private double[] probs;
-	private double scale = 1;
+	private double[] nextXs;
+	private double[] nextYs;
+	private double[] nextThetas;
+	private double[] nextProbs;
+	// Each particle's weight in log space, kept normalized: the weights add up to one.
+	private double[] logWeights;
+	private double ess;
+	private double resampleThreshold = 0.5;
+	private final int[] picks;
+	private double scale;
+	private Resampling resampling = Resampling.SYSTEMATIC;
+	private BinIndex kldBins;
+	// representativePose() bins the particles on an x/y grid of MODE_BIN_SIZE, groups adjacent
+	// occupied bins into clusters and returns the mean of the heaviest cluster. The clusters are
+	// found again after each resample; between resamples only the cluster's statistics are updated.
+	private final static double MODE_BIN_SIZE = 0.25;
+	private final BinIndex modeBins;
+	private final int[] particleBins;
+	private final int[] binXs;
+	private final int[] binYs;
+	private final double[] binWeights;
+	private final int[] binClusters;
+	private final int[] binQueue;
+	private final int[] members;
+	private int memberCount;
+	private double modeWeight;
+	private boolean clustersValid = false;
+	private boolean estimateValid = false;
+	private boolean covarianceValid = false;
+	private double estimateWeight;
+	private final Pose estimate = new Pose(0, 0, 0);
+	private final double[][] covariance = new double[3][3];
+	// Expected sonar ranges are looked up in a RangeTable, shared by all filters on the same map.
+	private final static Map<BotClientMap, RangeTable> rangeTables = new WeakHashMap<BotClientMap, RangeTable>();
+	private final static Map<BotClientMap, Boolean> rebuilding = new WeakHashMap<BotClientMap, Boolean>(); // Guarded by rangeTables.
+	private boolean useRangeTable = true;
+	private double rangeCellSize = RangeTable.DEFAULT_CELL_SIZE;
+	private int rangeAngleBins = RangeTable.DEFAULT_ANGLE_BINS;
+	private long rangeMaxBytes = RangeTable.DEFAULT_MAX_BYTES;
 	private final static Random random = new Random();
+	// Parallel mode: particles are processed in chunks of CHUNK_SIZE on the pool, each chunk
+	// with its own random number generator so the workers never contend for one.
+	private final static int CHUNK_SIZE = 1024;
+	private ForkJoinPool pool;
+	private SplittableRandom[] chunkRandoms;
+	private ChunkTask[] chunkTasks;
+	private ChunkRun chunkRun;
+	private final double[] chunkSums;
+	private final double[] chunkSquares;
+	private final double[][] chunkEstimates;
 
 	public ProbabilisticPose(Pose initial, int numTrials) {
-		this.NUM_TRIALS = numTrials;
-		this.poses = new Pose[NUM_TRIALS];
-		this.probs = new double[NUM_TRIALS];
-		// Set the first pose initially. "probs" double is cumulative. So initially will look like [1, 1, 1, 1, 1, ...].
+		this(initial, numTrials, numTrials);
+	}
+
+	/**
+	 * A filter whose particle count adapts, between the given bounds, to how
+	 * spread out the particles are (KLD-sampling). It starts with the minimum.
+	 */
+	public ProbabilisticPose(Pose initial, int minParticles, int maxParticles) {
+		if (minParticles < 1 || maxParticles < minParticles) {
+			throw new IllegalArgumentException("Bad particle count bounds: " + minParticles + ", " + maxParticles);
+		}
+		this.minParticles = minParticles;
+		this.maxParticles = maxParticles;
+		this.numParticles = minParticles;
+		this.xs = new double[maxParticles];
+		this.ys = new double[maxParticles];
+		this.thetas = new double[maxParticles];
+		this.probs = new double[maxParticles];
+		this.nextXs = new double[maxParticles];
+		this.nextYs = new double[maxParticles];
+		this.nextThetas = new double[maxParticles];
+		this.nextProbs = new double[maxParticles];
+		this.logWeights = new double[maxParticles];
+		this.picks = new int[maxParticles];
+		if (minParticles < maxParticles) {
+			this.kldBins = new BinIndex(maxParticles);
+		}
+		this.modeBins = new BinIndex(maxParticles);
+		this.particleBins = new int[maxParticles];
+		this.binXs = new int[maxParticles];
+		this.binYs = new int[maxParticles];
+		this.binWeights = new double[maxParticles];
+		this.binClusters = new int[maxParticles];
+		this.binQueue = new int[maxParticles];
+		this.members = new int[maxParticles];
+		int chunks = (maxParticles + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		this.chunkSums = new double[chunks];
+		this.chunkSquares = new double[chunks];
+		this.chunkEstimates = new double[chunks][3];
+		// Every particle starts at the initial pose. "probs" double is cumulative. So initially will look like [1/N, 2/N, 3/N, ... 1].
 		// This lets us do binary search to find value. Eventually will look like [0.011, 0.021, 0.029, 0.043... scale].
-		this.poses[0] = initial;
-		for (int i = 0; i < NUM_TRIALS; i++) {
-			this.probs[i] = 1;
+		for (int i = 0; i < numParticles; i++) {
+			this.xs[i] = initial.x;
+			this.ys[i] = initial.y;
+			this.thetas[i] = initial.theta;
+			this.logWeights[i] = -Math.log(numParticles);
+			this.probs[i] = (i + 1.0) / numParticles;
 		}
+		this.scale = 1.0;
+		this.ess = numParticles;
 	}
 
-	private Pose find(double k, int low, int high) {
-		// TODO: Use heuristic to speed this up. 0.37 will be (on avg) 37% of the way through.
-		if (low == high) {
-			return poses[low];
+	public void setResampling(Resampling resampling) {
+		this.resampling = resampling;
+	}
+
+	public Resampling getResampling() {
+		return resampling;
+	}
+
+	/**
+	 * Runs perturb() and resample() on the given pool, or on the calling
+	 * thread if it is null (the default). Sets of up to CHUNK_SIZE particles
+	 * are always processed on the calling thread.
+	 */
+	public void setParallel(ForkJoinPool pool) {
+		this.pool = pool;
+		if (pool != null && chunkRandoms == null) {
+			int chunks = (maxParticles + CHUNK_SIZE - 1) / CHUNK_SIZE;
+			SplittableRandom seed = new SplittableRandom(random.nextLong());
+			chunkRandoms = new SplittableRandom[chunks];
+			chunkTasks = new ChunkTask[chunks];
+			for (int c = 0; c < chunks; c++) {
+				chunkRandoms[c] = seed.split();
+				chunkTasks[c] = new ChunkTask(c);
+			}
+			chunkRun = new ChunkRun();
 		}
-		else if (high - low == 1) {
-			if (probs[high] < k) {
-				return poses[high];
+	}
+
+	private boolean runsInParallel(int count) {
+		return pool != null && count > CHUNK_SIZE;
+	}
+
+	private interface ChunkBody {
+		void run(int chunk, int from, int to);
+	}
+
+	/**
+	 * Runs body over particles [0, count) in chunks on the pool, and waits for it to finish.
+	 * Runs the chunks one after the other on the calling thread if not in parallel mode.
+	 */
+	private void forEachChunk(int count, final ChunkBody body) {
+		if (!runsInParallel(count)) {
+			for (int from = 0; from < count; from += CHUNK_SIZE) {
+				body.run(from / CHUNK_SIZE, from, Math.min(count, from + CHUNK_SIZE));
 			}
-			else {
-				return poses[low];
+			return;
+		}
+		int chunks = 0;
+		for (int from = 0; from < count; from += CHUNK_SIZE) {
+			ChunkTask task = chunkTasks[chunks++];
+			task.reinitialize();
+			task.body = body;
+			task.from = from;
+			task.to = Math.min(count, from + CHUNK_SIZE);
+		}
+		chunkRun.reinitialize();
+		chunkRun.chunks = chunks;
+		pool.invoke(chunkRun);
+	}
+
+	/**
+	 * One chunk of a forEachChunk() on the pool. Made once per chunk by
+	 * setParallel(), and reinitialized for every run rather than reallocated.
+	 */
+	private final static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int chunk;
+		private ChunkBody body;
+		private int from;
+		private int to;
+
+		ChunkTask(int chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		protected void compute() {
+			body.run(chunk, from, to);
+		}
+	}
+
+	/**
+	 * Forks all but the first chunk of a forEachChunk() run, computes that one
+	 * itself and then joins the rest, most recently forked first.
+	 */
+	private final class ChunkRun extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private int chunks;
+
+		@Override
+		protected void compute() {
+			for (int c = 1; c < chunks; c++) {
+				chunkTasks[c].fork();
+			}
+			chunkTasks[0].compute();
+			for (int c = chunks - 1; c > 0; c--) {
+				chunkTasks[c].join();
 			}
 		}
-		int guess = (high + low) / 2;
-		if (probs[guess] < k) {
-			return find(k, guess, high);
+	}
+
+	/**
+	 * Standard normal deviate (Box-Muller).
+	 */
+	private static double nextGaussian(SplittableRandom r) {
+		return Math.sqrt(-2 * Math.log(1 - r.nextDouble())) * Math.cos(2 * Math.PI * r.nextDouble());
+	}
+
+	/**
+	 * Sets the resolution of the table of expected sonar ranges: the size of
+	 * its x/y cells in grid units and the number of headings. The cells are
+	 * made coarser if the table would exceed maxBytes.
+	 */
+	public void setRangeTableResolution(double cellSize, int angleBins, long maxBytes) {
+		this.rangeCellSize = cellSize;
+		this.rangeAngleBins = angleBins;
+		this.rangeMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Whether to look expected sonar ranges up in a precomputed table (the
+	 * default) or ray-cast every particle against every wall.
+	 */
+	public void setRangeTableEnabled(boolean enabled) {
+		this.useRangeTable = enabled;
+	}
+
+	/**
+	 * Builds the table of expected sonar ranges for the map now, if it is
+	 * enabled and not already up to date, so that the first update() does
+	 * not have to.
+	 */
+	public void prepare(BotClientMap map) {
+		if (useRangeTable) {
+			rangeTable(map, true);
+		}
+	}
+
+	/**
+	 * The range table for the map. A table with the wrong parameters, or no
+	 * table at all, is built here and now. One that is only out of date
+	 * (walls have changed since) is built again on another thread, unless
+	 * now is set, and the old table is returned until the new one is ready;
+	 * see RangeTable.addedWalls() for using it meanwhile.
+	 */
+	private RangeTable rangeTable(final BotClientMap map, boolean now) {
+		final double minRange = Navigator.inchesToGridUnits(Math.min(Robot.ROBOT_RADIUS_INCHES, Robot.FRONT_SONAR_INCHES), map);
+		final double maxRange = Navigator.metersToGridUnits(10, map);
+		final double cellSize = rangeCellSize;
+		final int angleBins = rangeAngleBins;
+		final long maxBytes = rangeMaxBytes;
+		int version = map.getVersion();
+		synchronized (rangeTables) {
+			RangeTable table = rangeTables.get(map);
+			if (table == null || !table.hasParameters(minRange, maxRange, cellSize, angleBins, maxBytes)
+					|| (now && table.getMapVersion() != version)) {
+				table = new RangeTable(map, minRange, maxRange, cellSize, angleBins, maxBytes);
+				rangeTables.put(map, table);
+			}
+			else if (table.getMapVersion() != version && !rebuilding.containsKey(map)) {
+				rebuilding.put(map, Boolean.TRUE);
+				Thread builder = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						RangeTable rebuilt = null;
+						try {
+							rebuilt = new RangeTable(map, minRange, maxRange, cellSize, angleBins, maxBytes);
+						} finally {
+							synchronized (rangeTables) {
+								rebuilding.remove(map);
+								RangeTable current = rangeTables.get(map);
+								if (rebuilt != null && current != null && current.hasParameters(minRange, maxRange, cellSize, angleBins, maxBytes)
+										&& current.getMapVersion() < rebuilt.getMapVersion()) {
+									rangeTables.put(map, rebuilt);
+								}
+							}
+						}
+					}
+				}, "Range table");
+				builder.setDaemon(true);
+				builder.start();
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * The number of particles currently in the set.
+	 */
+	public int getParticleCount() {
+		return numParticles;
+	}
+
+	/**
+	 * Particle count KLD-sampling asks for, given the current particles,
+	 * clamped to the bounds.
+	 */
+	private int adaptedParticleCount() {
+		if (minParticles == maxParticles) {
+			return numParticles;
+		}
+		kldBins.clear();
+		int target = minParticles;
+		double previous = 0.0;
+		for (int i = 0; i < numParticles && target < maxParticles; i++) {
+			// Particles the sensors ruled out do not count towards the spread.
+			boolean dead = probs[i] <= previous;
+			previous = probs[i];
+			if (dead) {
+				continue;
+			}
+			int bins = kldBins.size();
+			kldBins.add(BinIndex.key((int) Math.floor(xs[i] / KLD_BIN_SIZE), (int) Math.floor(ys[i] / KLD_BIN_SIZE),
+					(int) Math.floor(Navigator.normalize(thetas[i]) / KLD_BIN_RADIANS)));
+			if (kldBins.size() > bins) {
+				target = Math.max(target, kldBound(kldBins.size()));
+			}
 		}
-		else {
-			if (guess == 0 || probs[guess - 1] <= k) {
-				return poses[guess];
+		return Math.min(target, maxParticles);
+	}
+
+	/**
+	 * Number of samples needed for the KLD bound when the posterior covers
+	 * the given number of bins (Fox, "KLD-Sampling", 2001).
+	 */
+	private static int kldBound(int bins) {
+		if (bins < 2) {
+			return 1;
+		}
+		double k = bins - 1;
+		double a = 2.0 / (9.0 * k);
+		double b = 1 - a + Math.sqrt(a) * KLD_Z;
+		return (int) Math.ceil(k / (2 * KLD_ERROR) * b * b * b);
+	}
+
+	/**
+	 * Index of the first particle whose cumulative probability is at least k.
+	 */
+	private int find(double k) {
+		// TODO: Use heuristic to speed this up. 0.37 will be (on avg) 37% of the way through.
+		int low = 0;
+		int high = numParticles - 1;
+		while (low < high) {
+			int guess = (high + low) >>> 1;
+			if (probs[guess] < k) {
+				low = guess + 1;
+			}
+			else {
+				high = guess;
 			}
-			return find(k, low, guess);
 		}
+		return low;
 	}
 
 	/**
@@ -75,97 +426,370 @@ public class ProbabilisticPose {
 	 * @param map
 	 * @param sonarReadings
 	 */
-	public void perturb(double dist, double angle) {
-		for (int i = 0; i < NUM_TRIALS; i++) {
-			if (poses[i] == null) {
-				continue;
-			}
-			Pose p = poses[i];
-			Pose newP = new Pose(p.x, p.y, p.theta);
-			newP.theta += GYRO_DRIFT * random.nextGaussian() /* TODO: * dT? */ + angle * (1 + (ANGLE_ERROR * random.nextGaussian()));
+	public void perturb(final double dist, final double angle) {
+		estimateValid = false;
+		if (runsInParallel(numParticles)) {
+			forEachChunk(numParticles, new ChunkBody() {
+				@Override
+				public void run(int chunk, int from, int to) {
+					perturb(from, to, dist, angle, chunkRandoms[chunk]);
+				}
+			});
+			return;
+		}
+		final double[] xs = this.xs;
+		final double[] ys = this.ys;
+		final double[] thetas = this.thetas;
+		for (int i = 0; i < numParticles; i++) {
+			double theta = thetas[i] + GYRO_DRIFT * random.nextGaussian() /* TODO: * dT? */ + angle * (1 + (ANGLE_ERROR * random.nextGaussian()));
 			double distErr = dist * (1 + (MOTION_ERROR * random.nextGaussian()));
-			newP.x += distErr * Math.cos(newP.theta);
-			newP.y += distErr * Math.sin(newP.theta);
-			poses[i] = newP;
+			thetas[i] = theta;
+			xs[i] += distErr * Math.cos(theta);
+			ys[i] += distErr * Math.sin(theta);
+		}
+	}
+
+	private void perturb(int from, int to, double dist, double angle, SplittableRandom r) {
+		final double[] xs = this.xs;
+		final double[] ys = this.ys;
+		final double[] thetas = this.thetas;
+		for (int i = from; i < to; i++) {
+			double theta = thetas[i] + GYRO_DRIFT * nextGaussian(r) + angle * (1 + (ANGLE_ERROR * nextGaussian(r)));
+			double distErr = dist * (1 + (MOTION_ERROR * nextGaussian(r)));
+			thetas[i] = theta;
+			xs[i] += distErr * Math.cos(theta);
+			ys[i] += distErr * Math.sin(theta);
 		}
 	}
 
 	/**
-	 * Resample probabilistically. This should be done periodically. Running this
-	 * a second time without modifying the parameters or perturbing the pose will
-	 * return the same thing, on average. 
+	 * Resample probabilistically, then weigh the new particles by how well
+	 * they explain the sonar readings. Running this a second time without
+	 * modifying the parameters or perturbing the pose will return the same
+	 * thing, on average.
 	 */
 	public void resample(BotClientMap map, double[] sonarReadings) {
 		//System.out.println(Arrays.toString(sonarReadings));
-		//System.out.println(Arrays.toString(mapBasedSonarEstimates(find(0.5 * scale, 0, NUM_TRIALS), map)));
-		double j = 0.0;
-		Pose[] newPoses = new Pose[NUM_TRIALS];
-		double[] newProbs = new double[NUM_TRIALS];
-		for (int i = 0; i < NUM_TRIALS; i++) {
-			double k = random.nextDouble() * scale;
-			Pose p = find(k, 0, NUM_TRIALS);
-			Pose newP = new Pose(p.x, p.y, p.theta);
-			newPoses[i] = newP;
-			// DON'T multiply by previous probability. That factor is already represented by the random sampling.
-			j += score(mapBasedSonarEstimates(newP, map), sonarReadings);
-			newProbs[i] = j;
+		//System.out.println(Arrays.toString(mapBasedSonarEstimates(new Pose(xs[find(0.5 * scale)], ys[find(0.5 * scale)], thetas[find(0.5 * scale)]), map)));
+		draw();
+		measure(map, sonarReadings);
+	}
+
+	/**
+	 * Weighs the particles by how well they explain the sonar readings, on
+	 * top of their current weights, and resamples only if the effective
+	 * sample size has dropped below the resample threshold. Returns whether
+	 * it resampled.
+	 */
+	public boolean update(BotClientMap map, double[] sonarReadings) {
+		measure(map, sonarReadings);
+		if (ess < resampleThreshold * numParticles) {
+			draw();
+			return true;
 		}
-		poses = newPoses;
-		probs = newProbs;
-		scale = j;
+		return false;
+	}
+
+	/**
+	 * update() resamples when the effective sample size falls below this
+	 * fraction of the particle count. Defaults to 0.5.
+	 */
+	public void setResampleThreshold(double fraction) {
+		this.resampleThreshold = fraction;
+	}
+
+	/**
+	 * 1 / sum(w^2) for normalized weights w: the number of equally weighted
+	 * particles that would carry as much information as the current set.
+	 */
+	public double getEffectiveSampleSize() {
+		return ess;
+	}
+
+	/**
+	 * Replaces the particles with ones drawn from them according to their
+	 * weights, all weighted equally.
+	 */
+	private void draw() {
+		int count = adaptedParticleCount();
+		switch (resampling) {
+		case MULTINOMIAL:
+			for (int i = 0; i < count; i++) {
+				picks[i] = find(random.nextDouble() * scale);
+			}
+			break;
+		case SYSTEMATIC:
+			sweep(probs, scale, count, 0, false);
+			break;
+		case STRATIFIED:
+			sweep(probs, scale, count, 0, true);
+			break;
+		case RESIDUAL:
+			residual(count);
+			break;
+		}
+		for (int i = 0; i < count; i++) {
+			int p = picks[i];
+			nextXs[i] = xs[p];
+			nextYs[i] = ys[p];
+			nextThetas[i] = thetas[p];
+		}
+		swapBuffers();
+		numParticles = count;
+		double logWeight = -Math.log(count);
+		for (int i = 0; i < count; i++) {
+			logWeights[i] = logWeight;
+			probs[i] = (i + 1.0) / count;
+		}
+		scale = 1.0;
+		ess = count;
+		clustersValid = false;
+		estimateValid = false;
+	}
+
+	/**
+	 * Adds the log-likelihood of the sonar readings to each particle's log
+	 * weight, then normalizes: the weights are exponentiated relative to the
+	 * largest one (log-sum-exp), so they neither underflow nor overflow, and
+	 * cumulated into probs. In parallel mode each chunk cumulates its own
+	 * weights, and the chunks are then shifted by the total of the chunks
+	 * before them.
+	 */
+	private void measure(final BotClientMap map, final double[] sonarReadings) {
+		RangeTable current = useRangeTable ? rangeTable(map, false) : null;
+		final List<Wall> walls = map.getWalls();
+		// Walls added since the table was built are ray-cast; if any of its
+		// own have gone or moved, everything is until it has been rebuilt.
+		final List<Wall> added = (current != null) ? current.addedWalls(walls) : null;
+		final RangeTable table = (added != null) ? current : null;
+		final int count = numParticles;
+		forEachChunk(count, new ChunkBody() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				chunkSums[chunk] = weigh(from, to, table, added, map, walls, sonarReadings, chunkEstimates[chunk]);
+			}
+		});
+		double max = Double.NEGATIVE_INFINITY;
+		for (int c = 0; c * CHUNK_SIZE < count; c++) {
+			max = Math.max(max, chunkSums[c]);
+		}
+		final double maxLogWeight = max;
+		forEachChunk(count, new ChunkBody() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				exponentiate(chunk, from, to, maxLogWeight);
+			}
+		});
+		double total = 0.0;
+		double squares = 0.0;
+		for (int c = 0; c * CHUNK_SIZE < count; c++) {
+			double sum = chunkSums[c];
+			chunkSums[c] = total;
+			total += sum;
+			squares += chunkSquares[c];
+		}
+		final double sum = total;
+		final double logSum = maxLogWeight + Math.log(total);
+		forEachChunk(count, new ChunkBody() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				double offset = chunkSums[chunk];
+				for (int i = from; i < to; i++) {
+					probs[i] = (probs[i] + offset) / sum;
+					logWeights[i] -= logSum;
+				}
+			}
+		});
+		scale = probs[count - 1];
+		ess = total * total / squares;
+		clustersValid = false;
+		estimateValid = false;
+	}
+
+	/**
+	 * Fills picks[from...from + count) with one pass over the cumulative
+	 * weights of the current particles, cumulative[0...numParticles), whose total is total. Point i is
+	 * (i + u) * total / count, with u drawn once (systematic) or for every
+	 * point (stratified). Each point picks the first particle whose
+	 * cumulative weight exceeds it.
+	 */
+	private void sweep(double[] cumulative, double total, int count, int from, boolean stratified) {
+		double step = total / count;
+		double u = random.nextDouble();
+		int p = 0;
+		for (int i = 0; i < count; i++) {
+			if (stratified) {
+				u = random.nextDouble();
+			}
+			double point = (i + u) * step;
+			while (p < numParticles - 1 && cumulative[p] <= point) {
+				p++;
+			}
+			picks[from + i] = p;
+		}
+	}
+
+	/**
+	 * Residual resampling. The leftover weights are accumulated in nextProbs,
+	 * which is not needed again until the picked particles are scored.
+	 */
+	private void residual(int count) {
+		int n = 0;
+		double previous = 0.0;
+		double leftover = 0.0;
+		for (int p = 0; p < numParticles; p++) {
+			double expected = count * (probs[p] - previous) / scale;
+			previous = probs[p];
+			int copies = Math.min((int) expected, count - n);
+			for (int c = 0; c < copies; c++) {
+				picks[n++] = p;
+			}
+			leftover += expected - copies;
+			nextProbs[p] = leftover;
+		}
+		if (n < count) {
+			sweep(nextProbs, leftover, count - n, n, false);
+		}
+	}
+
+	/**
+	 * Adds the log-likelihood of the readings to the log weights of particles
+	 * [from, to). Returns the largest resulting log weight.
+	 */
+	private double weigh(int from, int to, RangeTable table, List<Wall> added, BotClientMap map, List<Wall> walls, double[] sonarReadings, double[] estimates) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			if (table != null) {
+				tableBasedSonarEstimates(table, added, xs[i], ys[i], thetas[i], map, walls, estimates);
+			}
+			else {
+				mapBasedSonarEstimates(xs[i], ys[i], thetas[i], map, walls, estimates);
+			}
+			logWeights[i] += logScore(estimates, sonarReadings);
+			max = Math.max(max, logWeights[i]);
+		}
+		return max;
+	}
+
+	/**
+	 * Writes the running sum of exp(logWeight - max) over particles [from, to)
+	 * to probs, and the sum and sum of squares to the chunk's slots.
+	 */
+	private void exponentiate(int chunk, int from, int to, double max) {
+		double sum = 0.0;
+		double squares = 0.0;
+		for (int i = from; i < to; i++) {
+			double w = Math.exp(logWeights[i] - max);
+			sum += w;
+			squares += w * w;
+			probs[i] = sum;
+		}
+		chunkSums[chunk] = sum;
+		chunkSquares[chunk] = squares;
+	}
+
+	private void swapBuffers() {
+		double[] t = xs;
+		xs = nextXs;
+		nextXs = t;
+		t = ys;
+		ys = nextYs;
+		nextYs = t;
+		t = thetas;
+		thetas = nextThetas;
+		nextThetas = t;
+		t = probs;
+		probs = nextProbs;
+		nextProbs = t;
 	}
 
 	/**
 	 * Sonar estimates in std grid-size units.
 	 */
-	private static double[] mapBasedSonarEstimates(Pose pose, BotClientMap map) {
-		double thetaLeft = pose.theta + Math.PI / 2;
-		double thetaStraight = pose.theta;
-		double thetaRight = pose.theta - Math.PI / 2;
-		final double TEN_METERS = Navigator.metersToGridUnits(10, map);
+	static double[] mapBasedSonarEstimates(Pose pose, BotClientMap map) {
 		double[] ss = new double[3];
-		int i = 0;
-		for (double theta : new double[] {thetaLeft, thetaStraight, thetaRight}) {
-			double offset = (i == 1) ? Navigator.inchesToGridUnits(Robot.ROBOT_RADIUS_INCHES, map) : Navigator.inchesToGridUnits(Robot.FRONT_SONAR_INCHES, map);
-			double s = Double.POSITIVE_INFINITY;
-			for (Wall w : map.walls) {
-				if (Line2D.linesIntersect(w.start.x, w.start.y, w.end.x, w.end.y, pose.x, pose.y, pose.x + TEN_METERS * Math.cos(theta), pose.y + TEN_METERS * Math.sin(theta))) {
-					double r;
-					if (w.end.x - w.start.x != 0) {
-						double m = (w.end.y - w.start.y) / (w.end.x - w.start.x);
-						double b = w.start.y - (m * w.start.x);
-						r = ((m * pose.x + b - pose.y) / (Math.sin(theta) - m * Math.cos(theta))) - offset;
-					}
-					else {
-						double k = w.end.x;
-						r = ((k - pose.x) / Math.cos(theta)) - offset;
-					}
-					if (r > 0 && r < s) {
-						s = r;
-					}
+		mapBasedSonarEstimates(pose.x, pose.y, pose.theta, map, map.getWalls(), ss);
+		return ss;
+	}
+
+	/**
+	 * Sonar estimates in std grid-size units, written into ss (left, straight, right).
+	 */
+	private static void mapBasedSonarEstimates(double x, double y, double poseTheta, BotClientMap map, List<Wall> walls, double[] ss) {
+		for (int i = 0; i < 3; i++) {
+			ss[i] = castRay(x, y, poseTheta + (1 - i) * Math.PI / 2, sonarOffset(i, map), map, walls);
+		}
+	}
+
+	/**
+	 * Like mapBasedSonarEstimates, but looks the ranges up in a table, and
+	 * ray-casts only against the walls added since it was built. Rays that
+	 * start outside the table, or whose first wall is within the sonar's
+	 * offset, are ray-cast against every wall.
+	 */
+	private static void tableBasedSonarEstimates(RangeTable table, List<Wall> added, double x, double y, double poseTheta, BotClientMap map, List<Wall> walls, double[] ss) {
+		for (int i = 0; i < 3; i++) {
+			double theta = poseTheta + (1 - i) * Math.PI / 2;
+			double offset = sonarOffset(i, map);
+			double r = table.range(x, y, theta);
+			if (r > offset) {
+				ss[i] = r - offset;
+				if (!added.isEmpty()) {
+					ss[i] = Math.min(ss[i], castRay(x, y, theta, offset, map, added));
 				}
 			}
-			ss[i] = s;
-			i++;
+			else {
+				ss[i] = castRay(x, y, theta, offset, map, walls);
+			}
 		}
-		return ss;
+	}
+
+	private static double sonarOffset(int i, BotClientMap map) {
+		return (i == 1) ? Navigator.inchesToGridUnits(Robot.ROBOT_RADIUS_INCHES, map) : Navigator.inchesToGridUnits(Robot.FRONT_SONAR_INCHES, map);
 	}
 
 	/**
-	 * Scores a set of readings.
+	 * Distance from (x, y) along theta to the nearest of the walls further
+	 * than offset, minus the offset.
+	 */
+	private static double castRay(double x, double y, double theta, double offset, BotClientMap map, List<Wall> walls) {
+		final double TEN_METERS = Navigator.metersToGridUnits(10, map);
+		double s = Double.POSITIVE_INFINITY;
+		for (Wall w : walls) {
+			if (Line2D.linesIntersect(w.start.x, w.start.y, w.end.x, w.end.y, x, y, x + TEN_METERS * Math.cos(theta), y + TEN_METERS * Math.sin(theta))) {
+				double r;
+				if (w.end.x - w.start.x != 0) {
+					double m = (w.end.y - w.start.y) / (w.end.x - w.start.x);
+					double b = w.start.y - (m * w.start.x);
+					r = ((m * x + b - y) / (Math.sin(theta) - m * Math.cos(theta))) - offset;
+				}
+				else {
+					double k = w.end.x;
+					r = ((k - x) / Math.cos(theta)) - offset;
+				}
+				if (r > 0 && r < s) {
+					s = r;
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Log-likelihood of a set of readings.
 	 * @param sonarEstimates
 	 * @param sonarReadings
 	 * @return
 	 */
-	private double score(double[] sonarEstimates, double[] sonarReadings) {
-		double p = 1.0 / Math.sqrt(scale); /* Keep the scale semi-normal here: If scale gets to small, this will make it bigger; if scale gets to large, this will make it smaller. This would not be necessary if we were doing proper Bayesian logic here. */
+	private static double logScore(double[] sonarEstimates, double[] sonarReadings) {
+		double p = 0.0;
 		for (int i = 0; i < sonarEstimates.length; i++) {
 			if (sonarReadings[i] == Double.POSITIVE_INFINITY) {
 				continue;
 			}
 			double errorZ = (sonarReadings[i] - sonarEstimates[i]) / (Math.sqrt(2) * SONAR_STDERR);
 			/** This is a bad approximation. TODO: Do better. */
-			p *= ((ULTRASOUND_FLAKINESS) + (1 - ULTRASOUND_FLAKINESS) * normal(errorZ));
+			p += Math.log((ULTRASOUND_FLAKINESS) + (1 - ULTRASOUND_FLAKINESS) * normal(errorZ));
 		}
 		return p;
 	}
@@ -193,12 +817,12 @@ public class ProbabilisticPose {
 		    ((Graphics2D)g).setStroke(new BasicStroke(3));
 
 			Color[] colors = new Color[] {Color.black, Color.yellow, new Color(255,0,255), Color.green};
-			for (Wall w : m.walls) {
+			for (Wall w : m.getWalls()) {
 				g.setColor(colors[w.type.ordinal()]);
 				g.drawLine(size * (int)w.start.x, size * -(int)w.start.y, size * (int)w.end.x, size * -(int)w.end.y);
 			}
 
-			for (int i = 0; i < poses.length; i++) {
+			for (int i = 0; i < numParticles; i++) {
 				double prob;
 				if (i == 0) {
 					prob = probs[i];
@@ -206,12 +830,9 @@ public class ProbabilisticPose {
 				else {
 					prob = probs[i] - probs[i-1];
 				}
-				if (poses[i] == null) {
-					continue;
-				}
-				int w =  (int)(255.0 * Math.min(1, NUM_TRIALS * prob / (1.5 * scale)));
+				int w =  (int)(255.0 * Math.min(1, numParticles * prob / (1.5 * scale)));
 				g.setColor(new Color(255, 255 - w, 255 - w));
-				g.fillOval((int) (size * poses[i].x), (int)(-size * poses[i].y), 1, 1);
+				g.fillOval((int) (size * xs[i]), (int)(-size * ys[i]), 1, 1);
 			}
 		}
 	}
@@ -273,34 +894,173 @@ public class ProbabilisticPose {
 	 * @return
 	 */
 	public Pose representativePose() {
-		// Weighted average of all poses.
-		// TODO: this may fail horribly if there are multiple clusters. Hopefully that doesn't happen / data converges?
-		// To do angle averages, we sum the weighted direction vectors and calculate the angle of the resulting sum vector.
+		updateEstimate();
+		return new Pose(estimate.x, estimate.y, estimate.theta);
+	}
+
+	/**
+	 * Covariance of the particles in the cluster representativePose() comes
+	 * from, as a 3x3 matrix over (x, y, theta). Grid units and radians.
+	 */
+	public double[][] getCovariance() {
+		updateCovariance();
+		double[][] c = new double[3][];
+		for (int i = 0; i < 3; i++) {
+			c[i] = covariance[i].clone();
+		}
+		return c;
+	}
+
+	/**
+	 * Fraction of the total weight in the cluster representativePose() comes
+	 * from. Well below 1 means the filter has not decided between several
+	 * places the robot could be.
+	 */
+	public double getModeWeight() {
+		updateEstimate();
+		return modeWeight;
+	}
+
+	private double weight(int i) {
+		return (i == 0) ? probs[0] : probs[i] - probs[i - 1];
+	}
+
+	/**
+	 * Bins the particles, groups adjacent occupied bins (including diagonal
+	 * neighbours) into clusters, and lists the particles of the heaviest
+	 * cluster in members.
+	 */
+	private void findClusters() {
+		modeBins.clear();
+		for (int i = 0; i < numParticles; i++) {
+			double w = weight(i);
+			if (w <= 0 && scale > 0) {
+				particleBins[i] = -1;
+				continue;
+			}
+			int bx = (int) Math.floor(xs[i] / MODE_BIN_SIZE);
+			int by = (int) Math.floor(ys[i] / MODE_BIN_SIZE);
+			int bins = modeBins.size();
+			int b = modeBins.add(BinIndex.key(bx, by, 0));
+			if (b == bins) {
+				binXs[b] = bx;
+				binYs[b] = by;
+				binWeights[b] = 0.0;
+				binClusters[b] = -1;
+			}
+			binWeights[b] += w;
+			particleBins[i] = b;
+		}
+
+		int best = -1;
+		double bestWeight = Double.NEGATIVE_INFINITY;
+		int clusters = 0;
+		for (int b = 0; b < modeBins.size(); b++) {
+			if (binClusters[b] != -1) {
+				continue;
+			}
+			// Breadth-first search over neighbouring bins.
+			int head = 0;
+			int tail = 0;
+			double clusterWeight = 0.0;
+			binClusters[b] = clusters;
+			binQueue[tail++] = b;
+			while (head < tail) {
+				int c = binQueue[head++];
+				clusterWeight += binWeights[c];
+				for (int dx = -1; dx <= 1; dx++) {
+					for (int dy = -1; dy <= 1; dy++) {
+						int n = modeBins.get(BinIndex.key(binXs[c] + dx, binYs[c] + dy, 0));
+						if (n != -1 && binClusters[n] == -1) {
+							binClusters[n] = clusters;
+							binQueue[tail++] = n;
+						}
+					}
+				}
+			}
+			if (clusterWeight > bestWeight) {
+				bestWeight = clusterWeight;
+				best = clusters;
+			}
+			clusters++;
+		}
+
+		memberCount = 0;
+		for (int i = 0; i < numParticles; i++) {
+			if (particleBins[i] != -1 && binClusters[particleBins[i]] == best) {
+				members[memberCount++] = i;
+			}
+		}
+		modeWeight = (scale > 0) ? bestWeight / scale : (double) memberCount / numParticles;
+		clustersValid = true;
+	}
+
+	/**
+	 * Weighted mean of the best cluster's particles where they are now.
+	 * Angles are averaged by summing direction vectors. The covariance is
+	 * only worked out when asked for.
+	 */
+	private void updateEstimate() {
+		if (estimateValid) {
+			return;
+		}
+		if (!clustersValid) {
+			findClusters();
+		}
+		boolean uniform = !(scale > 0);
+		double total = 0.0;
 		double x_avg = 0.0;
 		double y_avg = 0.0;
 		double thetaX = 0.0;
 		double thetaY = 0.0;
-		for (int i = 0; i < NUM_TRIALS; i++) {
-			Pose p = poses[i];
-			if (p == null) {
-				continue;
-			}
-			double prob;
-			if (i == 0) {
-				prob = probs[i];
+		for (int m = 0; m < memberCount; m++) {
+			int i = members[m];
+			double prob = uniform ? 1.0 : weight(i);
+			total += prob;
+			x_avg += (xs[i] * prob);
+			y_avg += (ys[i] * prob);
+			thetaX += Math.cos(thetas[i]) * prob;
+			thetaY += Math.sin(thetas[i]) * prob;
+		}
+		estimate.x = x_avg / total;
+		estimate.y = y_avg / total;
+		estimate.theta = Math.atan2(thetaY, thetaX);
+		estimateWeight = total;
+		estimateValid = true;
+		covarianceValid = false;
+	}
+
+	/**
+	 * Weighted covariance of the best cluster's particles about the estimate.
+	 */
+	private void updateCovariance() {
+		updateEstimate();
+		if (covarianceValid) {
+			return;
+		}
+		boolean uniform = !(scale > 0);
+		double[] d = new double[3];
+		for (double[] row : covariance) {
+			Arrays.fill(row, 0.0);
+		}
+		for (int m = 0; m < memberCount; m++) {
+			int i = members[m];
+			double prob = uniform ? 1.0 : weight(i);
+			d[0] = xs[i] - estimate.x;
+			d[1] = ys[i] - estimate.y;
+			d[2] = Navigator.normalize(thetas[i] - estimate.theta);
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 3; c++) {
+					covariance[r][c] += prob * d[r] * d[c];
+				}
 			}
-			else {
-				prob = probs[i] - probs[i-1];
+		}
+		for (double[] row : covariance) {
+			for (int c = 0; c < 3; c++) {
+				row[c] /= estimateWeight;
 			}
-			x_avg += (p.x * prob);
-			y_avg += (p.y * prob);
-			thetaX += Math.cos(p.theta) * prob;
-			thetaY += Math.sin(p.theta) * prob;
 		}
-		x_avg /= scale;
-		y_avg /= scale;
-		double theta = Math.atan2(thetaY, thetaX);
-		return new Pose(x_avg, y_avg, theta);
+		covarianceValid = true;
 	}
 
 	/**
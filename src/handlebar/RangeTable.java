@@ -0,0 +1,215 @@
+package handlebar;
+
+import java.util.Arrays;
+import java.util.List;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Wall;
+
+/**
+ * Distances from points of a map to the nearest wall in each direction,
+ * precomputed on an x/y/theta grid so that ProbabilisticPose can look up a
+ * particle's expected sonar readings instead of ray-casting against every
+ * wall.
+ *
+ * The grid covers the bounding box of the walls. Each cell stores the
+ * distance from its centre, in grid units, along rays at evenly spaced
+ * headings; lookups take the nearest cell and heading. Distances are
+ * measured to the first wall further than minRange, and are infinite past
+ * maxRange.
+ *
+ * If the table would take more than maxBytes the cells are made coarser
+ * until it fits; the heading resolution is kept.
+ *
+ * A table stays usable after walls are added to the map: addedWalls() says
+ * which walls it does not have, and rays are cast against just those. Only
+ * removing or moving one of its own walls makes it useless.
+ */
+class RangeTable {
+	final static double DEFAULT_CELL_SIZE = 0.05; // Grid units, ~1 inch on a 22 inch grid.
+	final static int DEFAULT_ANGLE_BINS = 360;
+	final static long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	private final int mapVersion;
+	private final Wall[] walls; // The walls the table was built from, in map order.
+	private final double[] ends; // Their ends as they were then: x1, y1, x2, y2 for each.
+	private final double requestedCellSize;
+	private final long maxBytes;
+	private final double minRange;
+	private final double maxRange;
+
+	private final double minX;
+	private final double minY;
+	private final double cellSize;
+	private final int width;
+	private final int height;
+	private final int angleBins;
+	private final double binsPerRadian;
+	private final float[] ranges;
+
+	RangeTable(BotClientMap map, double minRange, double maxRange, double cellSize, int angleBins, long maxBytes) {
+		if (cellSize <= 0 || angleBins < 1 || 4L * angleBins > maxBytes) {
+			throw new IllegalArgumentException("Bad range table resolution: " + cellSize + ", " + angleBins + " bins, " + maxBytes + " bytes");
+		}
+		this.mapVersion = map.getVersion();
+		List<Wall> walls = map.getWalls();
+		this.walls = walls.toArray(new Wall[walls.size()]);
+		this.ends = new double[4 * this.walls.length];
+		for (int k = 0; k < this.walls.length; k++) {
+			Wall w = this.walls[k];
+			ends[4 * k] = w.start.x;
+			ends[4 * k + 1] = w.start.y;
+			ends[4 * k + 2] = w.end.x;
+			ends[4 * k + 3] = w.end.y;
+		}
+		this.requestedCellSize = cellSize;
+		this.maxBytes = maxBytes;
+		this.minRange = minRange;
+		this.maxRange = maxRange;
+		this.angleBins = angleBins;
+		this.binsPerRadian = angleBins / (2 * Math.PI);
+
+		double minx = Double.POSITIVE_INFINITY;
+		double maxx = Double.NEGATIVE_INFINITY;
+		double miny = Double.POSITIVE_INFINITY;
+		double maxy = Double.NEGATIVE_INFINITY;
+		for (Wall w : walls) {
+			minx = Math.min(minx, Math.min(w.start.x, w.end.x));
+			maxx = Math.max(maxx, Math.max(w.start.x, w.end.x));
+			miny = Math.min(miny, Math.min(w.start.y, w.end.y));
+			maxy = Math.max(maxy, Math.max(w.start.y, w.end.y));
+		}
+		if (walls.isEmpty()) {
+			minx = maxx = miny = maxy = 0;
+		}
+		while (4L * cells(maxx - minx, cellSize) * cells(maxy - miny, cellSize) * angleBins > maxBytes) {
+			cellSize *= 1.25;
+		}
+		this.minX = minx;
+		this.minY = miny;
+		this.cellSize = cellSize;
+		this.width = cells(maxx - minx, cellSize);
+		this.height = cells(maxy - miny, cellSize);
+		this.ranges = new float[width * height * angleBins];
+		build(walls);
+	}
+
+	private static int cells(double extent, double cellSize) {
+		return Math.max(1, (int) Math.ceil(extent / cellSize));
+	}
+
+	private void build(List<Wall> walls) {
+		int n = walls.size();
+		double[] ax = new double[n];
+		double[] ay = new double[n];
+		double[] ex = new double[n];
+		double[] ey = new double[n];
+		for (int k = 0; k < n; k++) {
+			Wall w = walls.get(k);
+			ax[k] = w.start.x;
+			ay[k] = w.start.y;
+			ex[k] = w.end.x - w.start.x;
+			ey[k] = w.end.y - w.start.y;
+		}
+		double[] dx = new double[angleBins];
+		double[] dy = new double[angleBins];
+		for (int t = 0; t < angleBins; t++) {
+			dx[t] = Math.cos(t / binsPerRadian);
+			dy[t] = Math.sin(t / binsPerRadian);
+		}
+		int index = 0;
+		for (int i = 0; i < width; i++) {
+			double px = minX + (i + 0.5) * cellSize;
+			for (int j = 0; j < height; j++) {
+				double py = minY + (j + 0.5) * cellSize;
+				for (int t = 0; t < angleBins; t++) {
+					// Solve p + r * d = a + u * e for each wall.
+					double best = Double.POSITIVE_INFINITY;
+					for (int k = 0; k < n; k++) {
+						double det = ex[k] * dy[t] - dx[t] * ey[k];
+						if (det == 0) {
+							continue;
+						}
+						double wx = ax[k] - px;
+						double wy = ay[k] - py;
+						double r = (ex[k] * wy - wx * ey[k]) / det;
+						double u = (dx[t] * wy - dy[t] * wx) / det;
+						if (u >= 0 && u <= 1 && r > minRange && r <= maxRange && r < best) {
+							best = r;
+						}
+					}
+					ranges[index++] = (float) best;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Distance to the nearest wall further than minRange along the given
+	 * heading, or NaN if the point is outside the table.
+	 */
+	double range(double x, double y, double theta) {
+		int i = (int) Math.floor((x - minX) / cellSize);
+		int j = (int) Math.floor((y - minY) / cellSize);
+		if (i < 0 || i >= width || j < 0 || j >= height) {
+			return Double.NaN;
+		}
+		int t = (int) (Math.round(theta * binsPerRadian) % angleBins);
+		if (t < 0) {
+			t += angleBins;
+		}
+		return ranges[(i * height + j) * angleBins + t];
+	}
+
+	/**
+	 * Whether this table has the given parameters.
+	 */
+	boolean hasParameters(double minRange, double maxRange, double cellSize, int angleBins, long maxBytes) {
+		return this.minRange == minRange && this.maxRange == maxRange
+				&& requestedCellSize == cellSize && this.angleBins == angleBins && this.maxBytes == maxBytes;
+	}
+
+	/**
+	 * The map version the table was built at.
+	 */
+	int getMapVersion() {
+		return mapVersion;
+	}
+
+	/**
+	 * The walls in the given list that this table was not built from, or
+	 * null if the table's own walls are not all still there, unmoved and in
+	 * the same order, so that the table cannot be used for that list.
+	 */
+	List<Wall> addedWalls(List<Wall> current) {
+		int n = current.size();
+		Wall[] added = new Wall[Math.max(0, n - walls.length)];
+		int k = 0;
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			Wall w = current.get(i);
+			if (k < walls.length && w == walls[k]) {
+				if (w.start.x != ends[4 * k] || w.start.y != ends[4 * k + 1]
+						|| w.end.x != ends[4 * k + 2] || w.end.y != ends[4 * k + 3]) {
+					return null;
+				}
+				k++;
+			}
+			else if (count < added.length) {
+				added[count++] = w;
+			}
+			else {
+				return null;
+			}
+		}
+		return (k == walls.length) ? Arrays.asList(added) : null;
+	}
+
+	double getCellSize() {
+		return cellSize;
+	}
+
+	long sizeInBytes() {
+		return 4L * ranges.length;
+	}
+}
@@ -0,0 +1,262 @@
+package handlebar;
+
+import handlebar.PathFinder.NoPathFoundException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Point;
+
+/**
+ * Plans to one destination over and over as the robot moves towards it,
+ * with D* Lite. The search runs backwards from the destination, and its
+ * state is kept between plans: when the robot has moved, only the points
+ * whose cost-to-go estimates are now in doubt are searched again, and when
+ * walls have been added to the map only the lattice points whose moves
+ * changed (and those downstream of them) are repaired. A plan from a few
+ * steps further along the same route typically costs a small fraction of
+ * a PathFinder search.
+ *
+ * Plans are lattice paths cut down to their turning points by line of
+ * sight, as PathFinder's are, though D* Lite itself only knows the
+ * lattice, so they can take slightly longer routes than Theta* would.
+ *
+ * Not thread-safe; use one per thread (Navigator makes one per
+ * moveToPoint()).
+ */
+public class Replanner {
+	// Keys closer together than this are taken to be equal. A point on the best
+	// route can have the same key as the start, but summed in a different order
+	// it comes out an ulp or so above it; compared exactly, the start would come
+	// first, the search would stop, and the point's stale g would be followed.
+	// Different keys are always much further apart than this.
+	private final static double KEY_TOLERANCE = 1e-9;
+
+	private final BotClientMap map;
+	private final Point destination;
+	private final NodeHeap open = new NodeHeap(KEY_TOLERANCE);
+
+	private Lattice lattice;
+	private int goal = -1;
+	private double[] g = new double[0];
+	private double[] rhs = new double[0];
+	private boolean seeded = false; // Whether the goal has gone into the open set yet.
+	private int start = -1;
+	private double km = 0; // Added to every key to make up for the start moving.
+	private int expansions = 0;
+
+	public Replanner(BotClientMap map, Point destination) {
+		this.map = map;
+		this.destination = destination;
+	}
+
+	/**
+	 * A path from the origin to the destination, as from
+	 * PathFinder.findPath().
+	 */
+	public List<Point> plan(Point origin) throws NoPathFoundException {
+		Lattice current = Lattice.of(map);
+		boolean repaired = false;
+		if (lattice == null || !lattice.sameShape(current) || PathFinder.goal(current, destination) != goal) {
+			reset(current);
+		}
+		else if (current != lattice) {
+			repair(current);
+			repaired = true;
+		}
+		int from = lattice.nearestOpen(origin.x, origin.y);
+		if (goal < 0 || from < 0 || !lattice.connected(from, goal)) {
+			throw new NoPathFoundException();
+		}
+		if (start >= 0 && from != start) {
+			km += heuristic(start, from);
+		}
+		start = from;
+		if (repaired) {
+			requeue();
+		}
+		if (!seeded) {
+			open.put(goal, heuristic(start, goal), 0);
+			seeded = true;
+		}
+		expansions = 0;
+		computeShortestPath();
+		return PathFinder.toPath(lattice, PathFinder.shortcut(lattice, descend()), origin, destination);
+	}
+
+	/**
+	 * The number of points the last plan() took off the open set.
+	 */
+	public int getLastExpansions() {
+		return expansions;
+	}
+
+	/**
+	 * Starts over on a new lattice.
+	 */
+	private void reset(Lattice current) {
+		lattice = current;
+		goal = PathFinder.goal(lattice, destination);
+		int nodes = lattice.size();
+		if (g.length < nodes) {
+			g = new double[nodes];
+			rhs = new double[nodes];
+		}
+		Arrays.fill(g, Double.POSITIVE_INFINITY);
+		Arrays.fill(rhs, Double.POSITIVE_INFINITY);
+		open.reset(nodes);
+		if (goal >= 0) {
+			rhs[goal] = 0;
+		}
+		seeded = false;
+		start = -1;
+		km = 0;
+	}
+
+	/**
+	 * Moves to a lattice of the same shape whose walls have changed, and
+	 * recomputes the points whose moves are different. Moves are symmetric,
+	 * so both ends of every added or removed move are among them.
+	 */
+	private void repair(Lattice current) {
+		Lattice previous = lattice;
+		lattice = current;
+		for (int node = 0; node < lattice.size(); node++) {
+			if (previous.changed(lattice, node)) {
+				updateRhs(node);
+			}
+		}
+	}
+
+	/**
+	 * Works out every key in the open set again from scratch, for the
+	 * current start, and starts km over. Keys from before a repair were
+	 * worked out from an earlier start and km, so they need not be lower
+	 * bounds any more. The open set is exactly the points whose g and rhs
+	 * differ.
+	 */
+	private void requeue() {
+		km = 0;
+		open.clear();
+		for (int node = 0; node < lattice.size(); node++) {
+			if (g[node] != rhs[node]) {
+				open.put(node, key(node), tie(node));
+			}
+		}
+	}
+
+	private double key(int node) {
+		return Math.min(g[node], rhs[node]) + heuristic(start, node) + km;
+	}
+
+	private double tie(int node) {
+		return Math.min(g[node], rhs[node]);
+	}
+
+	/**
+	 * Octile distance, which never overestimates on the lattice. Unlike
+	 * PathFinder, no landmark bound: the landmarks are chosen and measured
+	 * afresh whenever the lattice is rebuilt, and keys kept across a repair
+	 * must come from the same heuristic as the new ones.
+	 */
+	private double heuristic(int a, int b) {
+		int di = Math.abs(a / lattice.height - b / lattice.height);
+		int dj = Math.abs(a % lattice.height - b % lattice.height);
+		return Lattice.STEP * (Math.max(di, dj) + (Math.sqrt(2) - 1) * Math.min(di, dj));
+	}
+
+	private void computeShortestPath() {
+		while (open.topBefore(key(start), tie(start)) || rhs[start] > g[start]) {
+			if (open.isEmpty()) {
+				return;
+			}
+			int u = open.top();
+			double oldKey = open.topKey();
+			double oldTie = open.topTie();
+			double newKey = key(u);
+			double newTie = tie(u);
+			expansions++;
+			if (oldKey < newKey || (oldKey == newKey && oldTie < newTie)) {
+				open.put(u, newKey, newTie);
+			}
+			else if (g[u] > rhs[u]) {
+				g[u] = rhs[u];
+				open.remove(u);
+				for (int k = 0; k < 8; k++) {
+					if (lattice.allowed(u, k)) {
+						int s = lattice.neighbor(u, k);
+						if (s != goal && g[u] + Lattice.cost(k) < rhs[s]) {
+							rhs[s] = g[u] + Lattice.cost(k);
+							updateState(s);
+						}
+					}
+				}
+			}
+			else {
+				g[u] = Double.POSITIVE_INFINITY;
+				updateRhs(u);
+				for (int k = 0; k < 8; k++) {
+					if (lattice.allowed(u, k)) {
+						updateRhs(lattice.neighbor(u, k));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Recomputes a point's one-step lookahead cost from its neighbours.
+	 */
+	private void updateRhs(int node) {
+		if (node != goal) {
+			double best = Double.POSITIVE_INFINITY;
+			for (int k = 0; k < 8; k++) {
+				if (lattice.allowed(node, k)) {
+					best = Math.min(best, g[lattice.neighbor(node, k)] + Lattice.cost(k));
+				}
+			}
+			rhs[node] = best;
+		}
+		updateState(node);
+	}
+
+	private void updateState(int node) {
+		if (g[node] != rhs[node]) {
+			open.put(node, key(node), tie(node));
+		}
+		else {
+			open.remove(node);
+		}
+	}
+
+	/**
+	 * The lattice path from start to goal, following the cheapest
+	 * neighbour at each point.
+	 */
+	private int[] descend() {
+		int[] path = new int[lattice.size()];
+		int length = 0;
+		int node = start;
+		path[length++] = node;
+		while (node != goal) {
+			int next = -1;
+			double best = Double.POSITIVE_INFINITY;
+			for (int k = 0; k < 8; k++) {
+				if (lattice.allowed(node, k)) {
+					int s = lattice.neighbor(node, k);
+					if (g[s] + Lattice.cost(k) < best) {
+						best = g[s] + Lattice.cost(k);
+						next = s;
+					}
+				}
+			}
+			if (next < 0 || length == path.length) {
+				throw new IllegalStateException("No way down from lattice point " + node);
+			}
+			node = next;
+			path[length++] = node;
+		}
+		return Arrays.copyOf(path, length);
+	}
+}
@@ -1,6 +1,8 @@
 package handlebar;
 
 import comm.MapleComm;
+import comm.SensorDataListener;
+import comm.SensorSnapshot;
 import comm.MapleIO.SerialPortType;
 import devices.actuators.Cytron;
 import devices.actuators.Servo1800A;
@@ -8,8 +10,8 @@ import devices.sensors.Encoder;
 import devices.sensors.Gyroscope;
 import devices.sensors.Infrared;
 
-public class Robot {
-	private MapleComm maple;
+public class Robot implements Localizer.Sensors {
+	final private MapleComm maple;
 	// Motor cytrons
 	final private Cytron motorACytron = new Cytron(2, 1);
 	final private Cytron motorBCytron = new Cytron(7, 6);
@@ -25,13 +27,16 @@ public class Robot {
 	final private Infrared irRight = new Infrared(15); // Right side
 
 	// Internal tracking.
-	private long lastTimeMillis;
-	private double heading;
+	private long lastTimeNanos;
+	private volatile double heading;
+	private volatile double totalDistance;
 
 	// Robot dimensional constants.
 	final public static double WHEEL_RADIUS_INCHES = 3.875 / 2;
 	final public static double ROBOT_RADIUS_INCHES = 7;
 	final public static double FRONT_SONAR_INCHES = 5.5;
+	// Sensor streaming period asked of the Maple; 0 polls instead.
+	final private static int STREAMING_PERIOD_MILLIS = Integer.getInteger("maple.streamingPeriod", 0);
 	
 	final public int GREEN_BALL_CAPACITY = 3; //10;
 	final public int RED_BALL_CAPACITY = 3; //4;
@@ -45,9 +50,17 @@ public class Robot {
 	public int numRedBalls = 0;
 
 	public Robot(double initHeading) {
+		this(initHeading, new MapleComm(SerialPortType.LINUX));
+	}
+
+	/**
+	 * Drives the robot through an already connected MapleComm, e.g. one
+	 * talking to a MapleEmulator.
+	 */
+	public Robot(double initHeading, MapleComm maple) {
 		heading = initHeading;
+		this.maple = maple;
 		try {
-			maple = new MapleComm(SerialPortType.LINUX);
 			maple.registerDevice(motorACytron);
 			maple.registerDevice(motorBCytron);
 			maple.registerDevice(sorterServo);
@@ -56,28 +69,32 @@ public class Robot {
 			maple.registerDevice(irLeft);
 			maple.registerDevice(irFront);
 			maple.registerDevice(irRight);
+			// Polled by default: no Maple firmware understands the streaming
+			// request yet. Opt in with -Dmaple.streamingPeriod=<ms>.
+			if (STREAMING_PERIOD_MILLIS > 0) {
+				maple.setStreamingPeriod(STREAMING_PERIOD_MILLIS);
+			}
 			maple.initialize();
+			// Only changed actuators are sent, but resend everything about once
+			// a second (at the PID rate) in case the Maple missed an update.
+			maple.setFullRefreshInterval(30);
 
-			// Continually update the sensor data.
-			new Thread(new Runnable() {
-				public void run() {
-					while (true) {
-						maple.updateSensorData();
-						long time = System.currentTimeMillis();
-						if (lastTimeMillis > 0) {
-							long millis = time - lastTimeMillis;
-							heading += (millis * gyro.getAngularSpeed()) / -1000.0;
-						}
-						lastTimeMillis = time;
-						try {
-							Thread.sleep(10);
-						} catch(InterruptedException e) {
-							e.printStackTrace();
-						}
-						Thread.yield();
+			// Continually update the sensor data, integrating the gyro and
+			// encoder on every frame the reader thread processes.
+			maple.addSensorDataListener(new SensorDataListener() {
+				@Override
+				public void sensorDataUpdated(SensorSnapshot snapshot) {
+					long time = snapshot.getTimestamp();
+					double omega = gyro.getAngularSpeed(snapshot);
+					if (lastTimeNanos > 0 && !Double.isNaN(omega)) {
+						long nanos = time - lastTimeNanos;
+						heading += (nanos * omega) / -1000000000.0;
 					}
+					lastTimeNanos = time;
+					totalDistance += encoder.getDeltaAngularDistance(snapshot) * WHEEL_RADIUS_INCHES; // s = r theta? probably
 				}
-			}).start();
+			});
+			maple.startSensorPolling();
 		}
         catch (Exception ex) {
             System.out.println(ex);
@@ -96,28 +113,55 @@ public class Robot {
 	 * Gets the distance traveled, total, in inches.
 	 */
 	public double getTotalDistance() {
-		return encoder.getTotalAngularDistance() * WHEEL_RADIUS_INCHES; // s = r theta? probably
+		return totalDistance;
+	}
+
+	/**
+	 * Be notified after every sensor frame, once the heading and distance
+	 * have been updated from it.
+	 */
+	public void addSensorDataListener(SensorDataListener listener) {
+		maple.addSensorDataListener(listener);
+	}
+
+	public void removeSensorDataListener(SensorDataListener listener) {
+		maple.removeSensorDataListener(listener);
 	}
 
 	/**
 	 * Gets the distance given by sonar 1, in meters.
 	 */
 	public double getIRLeft() {
-		return irLeft.getDistance();
+		SensorSnapshot snapshot = maple.getLatestSnapshot();
+		return snapshot == null ? irLeft.getDistance() : irLeft.getDistance(snapshot);
 	}
 
 	/**
 	 * Gets the distance given by sonar 2, in meters.
 	 */
 	public double getIRFront() {
-		return irFront.getDistance();
+		SensorSnapshot snapshot = maple.getLatestSnapshot();
+		return snapshot == null ? irFront.getDistance() : irFront.getDistance(snapshot);
 	}
 
 	/**
 	 * Gets the distance given by sonar 3, in meters.
 	 */
 	public double getIRRight() {
-		return irRight.getDistance();
+		SensorSnapshot snapshot = maple.getLatestSnapshot();
+		return snapshot == null ? irRight.getDistance() : irRight.getDistance(snapshot);
+	}
+
+	/**
+	 * Gets the distances given by the left, front and right sonars, in that
+	 * order, all from the same sensor frame.
+	 */
+	public double[] getIRDistances() {
+		SensorSnapshot snapshot = maple.getLatestSnapshot();
+		if (snapshot == null) {
+			return new double[] {irLeft.getDistance(), irFront.getDistance(), irRight.getDistance()};
+		}
+		return new double[] {irLeft.getDistance(snapshot), irFront.getDistance(snapshot), irRight.getDistance(snapshot)};
 	}
 
 	/**
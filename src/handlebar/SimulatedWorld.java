@@ -0,0 +1,232 @@
+package handlebar;
+
+import java.awt.geom.Line2D;
+import java.util.Random;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Pose;
+import comm.BotClientMap.Wall;
+import comm.MapleEmulator;
+import devices.sensors.Encoder;
+import devices.sensors.Gyroscope;
+
+/**
+ * A simulated robot driving around a BotClientMap. It integrates
+ * differential-drive kinematics from the motor powers and synthesizes what
+ * the encoder, gyro and IR sensors would read, ray-casting the IR beams
+ * against the map walls.
+ *
+ * It can be stepped directly (see MissionSimulator), which runs as fast as
+ * the CPU allows, or plugged into a MapleEmulator as its SensorModel, in
+ * which case it reads the Cytron commands the emulated Maple received and
+ * advances in real time.
+ *
+ * Units follow the rest of the code: poses are in grid units, distances
+ * reported by the sensors in inches.
+ */
+public class SimulatedWorld implements MapleEmulator.SensorModel {
+	// Wheel speed at full power (no-load speed of the drive motors, roughly).
+	private final static double MAX_WHEEL_RADIANS_PER_SECOND = 3 * Math.PI;
+	private final static double WHEEL_SLIP = 0.02; // Std error of distance actually travelled.
+	private final static double GYRO_NOISE = 0.005; // Radians per second.
+	private final static double IR_NOISE = 0.05; // Relative.
+	private final static double IR_MAX_INCHES = 30; // Beyond this the IR sensors read nothing.
+
+	private final BotClientMap map;
+	private final Pose pose;
+	private final Random random;
+	private double leftPower = 0;
+	private double rightPower = 0;
+
+	// Accumulated since the last time the sensors were read.
+	private double wheelRadians = 0;
+	private double headingChange = 0;
+	private double elapsedSeconds = 0;
+	private long lastUpdateNanos = 0;
+
+	private double time = 0;
+	private int collisions = 0;
+
+	public SimulatedWorld(BotClientMap map, Pose start, long seed) {
+		this.map = map;
+		this.pose = new Pose(start.x, start.y, start.theta);
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Sets the motor powers, between -1 and 1. Following Navigator's
+	 * convention, driving the left wheel forward turns towards positive theta.
+	 */
+	public void setMotorPowers(double left, double right) {
+		leftPower = Math.min(Math.max(-1, left), 1);
+		rightPower = Math.min(Math.max(-1, right), 1);
+	}
+
+	/**
+	 * Advances the simulation. The robot cannot drive through a wall: it
+	 * stays where it is (but still turns, and its wheels still spin). Steps in
+	 * which its body overlaps a wall are counted as collisions.
+	 */
+	public void step(double seconds) {
+		double left = leftPower * MAX_WHEEL_RADIANS_PER_SECOND * seconds;
+		double right = rightPower * MAX_WHEEL_RADIANS_PER_SECOND * seconds;
+		double forward = Robot.WHEEL_RADIUS_INCHES * (left + right) / 2;
+		double turn = Robot.WHEEL_RADIUS_INCHES * (left - right) / (2 * Robot.ROBOT_RADIUS_INCHES);
+
+		double moved = Navigator.inchesToGridUnits(forward, map) * (1 + WHEEL_SLIP * random.nextGaussian());
+		double theta = pose.theta + turn / 2;
+		double x = pose.x + moved * Math.cos(theta);
+		double y = pose.y + moved * Math.sin(theta);
+		pose.theta += turn;
+		if (!crossesWall(pose.x, pose.y, x, y)) {
+			pose.x = x;
+			pose.y = y;
+		}
+		if (touchesWall(pose.x, pose.y)) {
+			collisions++;
+		}
+
+		wheelRadians += (left + right) / 2;
+		headingChange += turn;
+		elapsedSeconds += seconds;
+		time += seconds;
+	}
+
+	/**
+	 * The robot's actual pose. Do not modify.
+	 */
+	public Pose getTruePose() {
+		return pose;
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	public int getCollisions() {
+		return collisions;
+	}
+
+	/**
+	 * Distance the encoder measured since the last call, in inches.
+	 */
+	public double readDistanceInches() {
+		double inches = wheelRadians * Robot.WHEEL_RADIUS_INCHES;
+		wheelRadians = 0;
+		return inches;
+	}
+
+	/**
+	 * Heading change the gyro measured since the last call, in radians.
+	 */
+	public double readHeadingChange() {
+		double change = headingChange + GYRO_NOISE * random.nextGaussian() * elapsedSeconds;
+		headingChange = 0;
+		elapsedSeconds = 0;
+		return change;
+	}
+
+	/**
+	 * Left, front and right IR distances in inches (infinite when out of
+	 * range), as Robot.getIRLeft() etc. would report them.
+	 */
+	public double[] readIRInches() {
+		double[] readings = ProbabilisticPose.mapBasedSonarEstimates(pose, map);
+		for (int i = 0; i < readings.length; i++) {
+			double inches = readings[i] * map.gridSize * (1 + IR_NOISE * random.nextGaussian());
+			readings[i] = (inches > IR_MAX_INCHES) ? Double.POSITIVE_INFINITY : Math.max(0, inches);
+		}
+		return readings;
+	}
+
+	/**
+	 * Drives the emulated Maple's sensors: the first two Cytrons are taken to
+	 * be the left and right motors and the first three analog inputs the
+	 * left, front and right IR sensors, as registered by Robot.
+	 */
+	@Override
+	public void update(MapleEmulator maple, long nanoTime) {
+		MapleEmulator.Device leftMotor = null;
+		MapleEmulator.Device rightMotor = null;
+		for (MapleEmulator.Device device : maple.getDevices()) {
+			if (device.getDeviceCode() == 'C') {
+				if (leftMotor == null) {
+					leftMotor = device;
+				}
+				else if (rightMotor == null) {
+					rightMotor = device;
+				}
+			}
+		}
+		if (leftMotor != null && rightMotor != null) {
+			setMotorPowers(leftMotor.getCommand() / 32767.0, rightMotor.getCommand() / 32767.0);
+		}
+		if (lastUpdateNanos != 0) {
+			step((nanoTime - lastUpdateNanos) / 1000000000.0);
+		}
+		lastUpdateNanos = nanoTime;
+
+		double seconds = elapsedSeconds;
+		double turn = readHeadingChange();
+		int ticks = (int) Math.round(readDistanceInches() / Robot.WHEEL_RADIUS_INCHES * Encoder.TICKS_PER_RADIAN);
+		double[] ir = readIRInches();
+		int irIndex = 0;
+		for (MapleEmulator.Device device : maple.getDevices()) {
+			switch (device.getDeviceCode()) {
+			case 'Y':
+				// Robot integrates the gyro with the opposite sign.
+				double omega = (seconds > 0) ? turn / seconds : 0;
+				device.setReading((int) Math.round(-omega / Gyroscope.CONVERSION_FACTOR));
+				break;
+			case 'N':
+				device.addReading(ticks);
+				break;
+			case 'A':
+				if (irIndex < ir.length) {
+					device.setReading(irValue(ir[irIndex++]));
+				}
+				break;
+			case 'U':
+				device.setReading((int) Math.round(ir[1] / 39.3701 * 2000000.0 / 340.29));
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Inverse of Infrared.getDistance(): the raw analog value for a distance.
+	 */
+	private static int irValue(double inches) {
+		if (Double.isInfinite(inches)) {
+			return 0;
+		}
+		if (inches < 8) {
+			return (int) Math.round(2900.0 - (inches - 6) * (2900.0 - 2680.0) / 2);
+		}
+		if (inches < 10) {
+			return (int) Math.round(2680.0 - (inches - 8) * (2680.0 - 2350.0) / 2);
+		}
+		return (int) Math.round(21000.0 * (1 / inches + 0.00476190));
+	}
+
+	private boolean crossesWall(double x0, double y0, double x1, double y1) {
+		for (Wall w : map.getWalls()) {
+			if (Line2D.linesIntersect(w.start.x, w.start.y, w.end.x, w.end.y, x0, y0, x1, y1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean touchesWall(double x, double y) {
+		double radius = Navigator.inchesToGridUnits(Robot.ROBOT_RADIUS_INCHES, map);
+		for (Wall w : map.getWalls()) {
+			if (Line2D.ptSegDist(w.start.x, w.start.y, w.end.x, w.end.y, x, y) < radius) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,120 @@
+package comm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import devices.sensors.AnalogInput;
+
+/**
+ * A corrupt sensor data frame is dropped, and polling carries on with the
+ * next one instead of waiting forever for a frame that was never asked for.
+ * Nor does a failing listener, or a stopped reader thread, leave callers of
+ * updateSensorData() waiting forever.
+ */
+public class MapleCommTest {
+	private final static int READING = 1100;
+
+	@Test(timeout = 5000)
+	public void updateSensorDataRecoversFromCorruptFrame() {
+		MapleEmulator emulator = emulator();
+		MapleComm comm = new MapleComm(emulator);
+		AnalogInput input = new AnalogInput(1);
+		comm.registerDevice(input);
+		comm.initialize();
+
+		emulator.corruptSensorFrames(1);
+		comm.updateSensorData();
+		assertEquals(READING, input.getValue(), 0);
+	}
+
+	@Test(timeout = 5000)
+	public void readerSurvivesFailingListener() {
+		MapleEmulator emulator = emulator();
+		MapleComm comm = new MapleComm(emulator);
+		AnalogInput input = new AnalogInput(1);
+		comm.registerDevice(input);
+		comm.initialize();
+		comm.addSensorDataListener(new SensorDataListener() {
+			public void sensorDataUpdated(SensorSnapshot snapshot) {
+				throw new IllegalStateException("listener failed");
+			}
+		});
+
+		comm.startSensorPolling();
+		comm.updateSensorData();
+		comm.updateSensorData();
+		comm.stopSensorPolling();
+		assertEquals(READING, input.getValue(), 0);
+	}
+
+	@Test(timeout = 5000)
+	public void updateSensorDataPollsOnceReaderStops() {
+		MapleEmulator emulator = emulator();
+		MapleComm comm = new MapleComm(emulator);
+		AnalogInput input = new AnalogInput(1);
+		comm.registerDevice(input);
+		comm.initialize();
+
+		comm.startSensorPolling();
+		comm.updateSensorData();
+		comm.stopSensorPolling();
+		comm.updateSensorData();
+		comm.updateSensorData();
+		assertEquals(READING, input.getValue(), 0);
+	}
+
+	@Test(timeout = 5000)
+	public void readerPollsNoFasterThanPollPeriod() throws InterruptedException {
+		MapleEmulator emulator = emulator();
+		MapleComm comm = new MapleComm(emulator);
+		comm.registerDevice(new AnalogInput(1));
+		comm.initialize();
+		comm.setPollPeriod(20);
+
+		comm.startSensorPolling();
+		Thread.sleep(400);
+		comm.stopSensorPolling();
+		long frames = emulator.getSensorFramesSent();
+		assertTrue("polled " + frames + " frames", frames >= 5 && frames <= 400 / 20 + 2);
+	}
+
+	@Test(timeout = 5000)
+	public void getMostRecentMessageRecoversFromCorruptFrame() {
+		MapleEmulator emulator = emulator();
+		MapleIO io = new MapleIO();
+		io.connect(emulator);
+		io.setExpectedInboundMessageSize(2);
+		io.sendInitMessage(initMessage());
+
+		emulator.corruptSensorFrames(1);
+		io.sendSensorDataRequest();
+		assertArrayEquals(new byte[] {(byte) (READING >> 8), (byte) READING}, io.getMostRecentMessage());
+		assertEquals(1, io.getDecoder().getCorruptFrames());
+	}
+
+	private static MapleEmulator emulator() {
+		MapleEmulator emulator = new MapleEmulator();
+		emulator.setSensorModel(new MapleEmulator.SensorModel() {
+			public void update(MapleEmulator maple, long nanoTime) {
+				maple.getDevice(0).setReading(READING);
+			}
+		});
+		return emulator;
+	}
+
+	/**
+	 * One analog input, as MapleComm.initialize() would describe it.
+	 */
+	private static ByteArrayOutputStream initMessage() {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(1);
+		data.write('A');
+		data.write(1);
+		return data;
+	}
+}
@@ -0,0 +1,38 @@
+package handlebar;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Changing a node's keys must keep the heap in the order its tolerance
+ * gives, including when the first key moves by less than the tolerance.
+ */
+public class NodeHeapTest {
+	@Test
+	public void keyChangeWithinToleranceFollowsTie() {
+		NodeHeap heap = new NodeHeap(1e-9);
+		heap.reset(3);
+		heap.put(0, 1, 1);
+		heap.put(1, 1, 1.5);
+		heap.put(2, 1, 1.6);
+		heap.put(0, 1 - 1e-12, 2);
+		assertEquals(1, heap.pop());
+		assertEquals(2, heap.pop());
+		assertEquals(0, heap.pop());
+	}
+
+	@Test
+	public void keyChangeBeyondToleranceMovesNode() {
+		NodeHeap heap = new NodeHeap(1e-9);
+		heap.reset(3);
+		heap.put(0, 1, 0);
+		heap.put(1, 2, 0);
+		heap.put(2, 3, 0);
+		heap.put(2, 0.5, 0);
+		heap.put(0, 4, 0);
+		assertEquals(2, heap.pop());
+		assertEquals(1, heap.pop());
+		assertEquals(0, heap.pop());
+	}
+}
@@ -0,0 +1,114 @@
+package handlebar;
+
+import static org.junit.Assert.assertEquals;
+import handlebar.PathFinder.NoPathFoundException;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import comm.BotClientMap;
+import comm.BotClientMap.Point;
+import comm.BotClientMap.Wall;
+import comm.BotClientMap.Wall.WallType;
+
+/**
+ * A Replanner that has repaired its search after walls were added must plan
+ * the same routes as one that starts from scratch on the new map.
+ */
+public class ReplannerTest {
+	private final static int SIZE = 8;
+	private final static int TRIALS = 200;
+
+	@Test
+	public void repairedPlansMatchFreshPlans() throws NoPathFoundException {
+		Random random = new Random(1);
+		for (int trial = 0; trial < TRIALS; trial++) {
+			BotClientMap map = serpentine(SIZE);
+			Point goal = new Point(SIZE - 0.5, SIZE - 0.5);
+			Replanner planner = new Replanner(map, goal);
+			planner.plan(map.startPose);
+
+			Wall wall = addOpponentWall(map, random);
+			Point origin = new Point(map.startPose.x + 0.5, map.startPose.y);
+			assertSamePlan(wall, origin, map, goal, planner);
+		}
+	}
+
+	@Test
+	public void repairedPlansMatchFreshPlansAlongTheWay() throws NoPathFoundException {
+		Random random = new Random(2);
+		for (int trial = 0; trial < TRIALS / 4; trial++) {
+			BotClientMap map = serpentine(SIZE);
+			Point goal = new Point(SIZE - 0.5, SIZE - 0.5);
+			Replanner planner = new Replanner(map, goal);
+			Wall wall = null;
+			for (int step = 0; step < 6; step++) {
+				if (step % 2 == 1) {
+					wall = addOpponentWall(map, random);
+				}
+				Point origin = new Point(0.25 + random.nextDouble() * (SIZE - 0.5), 0.25 + random.nextDouble() * (SIZE - 0.5));
+				assertSamePlan(wall, origin, map, goal, planner);
+			}
+		}
+	}
+
+	private static void assertSamePlan(Wall wall, Point origin, BotClientMap map, Point goal, Replanner planner) throws NoPathFoundException {
+		List<Point> fresh;
+		try {
+			fresh = new Replanner(map, goal).plan(origin);
+		} catch (NoPathFoundException e) {
+			return; // The wall closed the corridor, or the origin is against it.
+		}
+		assertEquals("From " + origin + " after adding " + wall, length(fresh), length(planner.plan(origin)), 1e-6);
+	}
+
+	/**
+	 * Half a square of opponent wall somewhere on the map.
+	 */
+	private static Wall addOpponentWall(BotClientMap map, Random random) {
+		double x = 0.25 + random.nextDouble() * (SIZE - 0.5);
+		double y = 0.25 + random.nextDouble() * (SIZE - 0.5);
+		Point end = random.nextBoolean() ? new Point(x + 0.5, y) : new Point(x, y + 0.5);
+		Wall wall = new Wall(new Point(x, y), end, WallType.OPPONENT);
+		map.addWall(wall);
+		return wall;
+	}
+
+	/**
+	 * An n by n field split into a corridor two squares wide that winds from
+	 * the start pose in the bottom left corner to the top right one (for even
+	 * n).
+	 */
+	private static BotClientMap serpentine(int n) {
+		StringBuilder s = new StringBuilder("22.00:0.50,0.50,0.00:");
+		wall(s, 0, 0, n, 0);
+		wall(s, n, 0, n, n);
+		wall(s, n, n, 0, n);
+		wall(s, 0, n, 0, 0);
+		for (int x = 2; x < n; x += 2) {
+			if (x % 4 == 2) {
+				wall(s, x, 0, x, n - 1);
+			}
+			else {
+				wall(s, x, 1, x, n);
+			}
+		}
+		BotClientMap map = new BotClientMap();
+		map.load(s.toString());
+		return map;
+	}
+
+	private static void wall(StringBuilder s, int x1, int y1, int x2, int y2) {
+		s.append(x1).append(".00,").append(y1).append(".00,").append(x2).append(".00,").append(y2).append(".00,N:");
+	}
+
+	private static double length(List<Point> path) {
+		double length = 0;
+		for (int i = 1; i < path.size(); i++) {
+			length += Math.hypot(path.get(i).x - path.get(i - 1).x, path.get(i).y - path.get(i - 1).y);
+		}
+		return length;
+	}
+}